@@ -1,23 +1 @@
-#./gradlew :run --args='-font=Roboto-Medium -sizes=8,12,18,27,40,60,90'
-#./gradlew :run --args='-font=Roboto-Italic -sizes=8,12,18,27,40,60,90'
-
-./gradlew :run --args='-font=NotoSansMono-Regular -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSansMono-Italic -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSansMono-Bold -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSansMono-BoldItalic -sizes=8,10,12,15,18,27,40,60'
-
-./gradlew :run --args='-font=NotoSans-Regular -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSans-Italic -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSans-Bold -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSans-BoldItalic -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSans-Condensed -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSans-CondensedBold -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSans-CondensedItalic -sizes=8,10,12,15,18,27,40,60,90'
-
-./gradlew :run --args='-font=NotoSerif-Regular -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSerif-Italic -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSerif-Bold -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSerif-BoldItalic -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSerif-Condensed -sizes=8,10,12,15,18,27,40,60,90'
-./gradlew :run --args='-font=NotoSerif-CondensedItalic -sizes=8,10,12,15,18,27,40,60,90'
-
+./gradlew :run --args='-manifest=fontimport.manifest'
@@ -0,0 +1,32 @@
+package roo.display;
+
+import java.awt.Font;
+import java.awt.font.TextAttribute;
+import java.util.HashMap;
+import java.util.Map;
+
+// Fonts shared by the benchmarks. They use the JDK's logical fonts, so that
+// they run (headless) on any machine, without font files of their own.
+final class BenchmarkFonts {
+
+  // Printable ASCII.
+  static final char[] ASCII = charset(0x21, 0x7E);
+
+  private BenchmarkFonts() {}
+
+  // The logical SansSerif font at the specified size, with kerning on, as
+  // FontImporter derives it.
+  static Font sansSerif(int size) {
+    Map<TextAttribute, Object> attributes = new HashMap<>();
+    attributes.put(TextAttribute.KERNING, TextAttribute.KERNING_ON);
+    return new Font(Font.SANS_SERIF, Font.PLAIN, size).deriveFont(attributes);
+  }
+
+  static char[] charset(int first, int last) {
+    char[] result = new char[last - first + 1];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = (char) (first + i);
+    }
+    return result;
+  }
+}
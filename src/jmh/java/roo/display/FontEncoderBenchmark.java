@@ -0,0 +1,63 @@
+package roo.display;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import hexwriter.BinaryWriter;
+import hexwriter.HexWriter;
+
+// Encoding and emitting a whole font (printable ASCII, with kerning), to
+// writers that discard the output: the hex text through HexWriter, the same
+// text through HexFileWriter, and the binary data.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FontEncoderBenchmark {
+
+  @Param({ "12", "60" })
+  int size;
+
+  @Param({ "RLE", "PLAIN", "ADAPTIVE" })
+  String compression;
+
+  private FontEncoder.Compression mode;
+  private FontEncoder encoder;
+
+  @Setup
+  public void setUp() {
+    RooDisplayFont font = new RooDisplayFont(BenchmarkFonts.sansSerif(size), true, BenchmarkFonts.ASCII);
+    font.generateKerningPairs(null);
+    encoder = new FontEncoder(font);
+    encoder.setTimestamped(false);
+    mode = FontEncoder.Compression.valueOf(compression);
+  }
+
+  @Benchmark
+  public int hexWriter() throws IOException {
+    return encoder.writeDefinition(new HexWriter(Writer.nullWriter()), "font", mode);
+  }
+
+  @Benchmark
+  public int hexFileWriter() throws IOException {
+    try (HexFileWriter writer = new HexFileWriter(new File("/dev/null"))) {
+      return encoder.writeDefinition(writer, "font", mode);
+    }
+  }
+
+  @Benchmark
+  public int binaryWriter() throws IOException {
+    return encoder.writeDefinition(new BinaryWriter(OutputStream.nullOutputStream()), "font", mode);
+  }
+}
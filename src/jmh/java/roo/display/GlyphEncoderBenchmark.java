@@ -0,0 +1,44 @@
+package roo.display;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Encoding of all the glyphs of printable ASCII, into a reused buffer.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GlyphEncoderBenchmark {
+
+  @Param({ "12", "60" })
+  int size;
+
+  @Param({ "true", "false" })
+  boolean rle;
+
+  private RooDisplayFont font;
+  private FontEncoder.GlyphEncoder encoder;
+  private final FontEncoder.GlyphBuffer buffer = new FontEncoder.GlyphBuffer();
+
+  @Setup
+  public void setUp() {
+    font = new RooDisplayFont(BenchmarkFonts.sansSerif(size), true, BenchmarkFonts.ASCII);
+    encoder = new FontEncoder.GlyphEncoder(font.getAlphaBits(), rle);
+  }
+
+  @Benchmark
+  public int encodeGlyphs() {
+    buffer.reset();
+    for (RooDisplayFont.Glyph glyph : font.getGlyphs()) {
+      encoder.encodeGlyph(glyph, buffer);
+    }
+    return buffer.size();
+  }
+}
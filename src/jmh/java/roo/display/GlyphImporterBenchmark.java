@@ -0,0 +1,39 @@
+package roo.display;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Rasterization of a single glyph, cycling through printable ASCII. (As in
+// the other benchmarks, the signatures only use public types, for the code
+// generated by JMH in another package.)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GlyphImporterBenchmark {
+
+  @Param({ "12", "27", "60" })
+  int size;
+
+  private RooDisplayFont.GlyphImporter importer;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    importer = new RooDisplayFont.GlyphImporter(BenchmarkFonts.sansSerif(size));
+  }
+
+  @Benchmark
+  public Object importGlyph() {
+    char c = BenchmarkFonts.ASCII[next];
+    next = (next + 1) % BenchmarkFonts.ASCII.length;
+    return importer.importGlyph(c, RooDisplayFont.AlphaBits.FOUR);
+  }
+}
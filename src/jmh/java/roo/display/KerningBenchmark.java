@@ -0,0 +1,46 @@
+package roo.display;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Kerning pair generation over printable ASCII: probing all pairs, and only
+// the candidates found at a larger size (as FontImporter does).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KerningBenchmark {
+
+  @Param({ "12", "27" })
+  int size;
+
+  private RooDisplayFont font;
+  private RooDisplayFont.CodePointPairs candidates;
+
+  @Setup
+  public void setUp() {
+    RooDisplayFont large = new RooDisplayFont(BenchmarkFonts.sansSerif(40), true, BenchmarkFonts.ASCII);
+    large.generateKerningPairs(null);
+    candidates = large.getKerningPairs().getCodePointPairs();
+    font = new RooDisplayFont(BenchmarkFonts.sansSerif(size), true, BenchmarkFonts.ASCII);
+  }
+
+  @Benchmark
+  public int allPairs() {
+    font.generateKerningPairs(null);
+    return font.getKerningPairs().size();
+  }
+
+  @Benchmark
+  public int candidates() {
+    font.generateKerningPairs(candidates);
+    return font.getKerningPairs().size();
+  }
+}
@@ -0,0 +1,223 @@
+package roo.display;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+import hexwriter.BinaryWriter;
+import roo.display.RooDisplayFont.AlphaBits;
+import roo.display.RooDisplayFont.Glyph;
+
+// Finds the best quality configuration of a font (at a single size) whose font
+// data fits in a byte budget. Quality is, in order of precedence: the glyphs
+// kept (optional Unicode blocks are only dropped if nothing else fits, in the
+// order given), the alpha resolution, and the kerning pairs kept (the ones
+// adjusting the spacing the least go first). Compression does not affect
+// quality; the smallest of the allowed ones is used.
+//
+// All the candidates are derived from a single import of the font, at 8-bit
+// alpha, with its kerning pairs: glyphs are trimmed once for each alpha
+// resolution, and the encoded lengths (and hashes, for deduplication) of the
+// trimmed glyphs are cached, so that sizing a candidate (with FontEncoder,
+// without encoding the glyph data) mostly amounts to laying out its metrics
+// and kerning.
+class BudgetOptimizer {
+
+  private static final AlphaBits[] DEPTHS =
+      { AlphaBits.EIGHT, AlphaBits.FOUR, AlphaBits.TWO, AlphaBits.ONE };
+
+  // A configuration of the font, with the size of its font data.
+  static class Candidate {
+    final RooDisplayFont font;
+    final FontEncoder.Compression compression;
+    final int minKern;
+    final List<Character.UnicodeBlock> droppedBlocks;
+    final int bytes;
+
+    Candidate(RooDisplayFont font, FontEncoder.Compression compression, int minKern,
+        List<Character.UnicodeBlock> droppedBlocks, int bytes) {
+      this.font = font;
+      this.compression = compression;
+      this.minKern = minKern;
+      this.droppedBlocks = droppedBlocks;
+      this.bytes = bytes;
+    }
+
+    // Describes the configuration as the options that select it.
+    String describe() {
+      String result = "-alpha-bits=" + font.getAlphaBits().bits() + " -compression="
+          + compression.name().toLowerCase() + " -min-kern=" + minKern;
+      if (!droppedBlocks.isEmpty()) {
+        result += " without "
+            + droppedBlocks.stream().map(Object::toString).collect(Collectors.joining(", "));
+      }
+      return result;
+    }
+  }
+
+  private final RooDisplayFont source;
+  private final List<FontEncoder.Compression> compressions;
+  private final List<Character.UnicodeBlock> optionalBlocks;
+  private final ExecutorService executor;
+  private final int workers;
+  private final Map<AlphaBits, List<Glyph>> trimmed = new EnumMap<>(AlphaBits.class);
+  private final FontEncoder.LengthCache lengthCache = new FontEncoder.LengthCache();
+  private boolean deduplicateGlyphs;
+  private FontEncoder.KerningFormat kerningFormat = FontEncoder.KerningFormat.FLAT;
+  private boolean lookupIndex;
+  private AlphaBits maxAlphaBits = AlphaBits.EIGHT;
+  private Candidate smallest;
+  private int candidatesSized;
+
+  // The source font must have been imported at 8-bit alpha, and kerned.
+  // Compressions are tried in the order given, and the first of the smallest
+  // is used. Only PLAIN applies below 4-bit alpha.
+  BudgetOptimizer(RooDisplayFont source, List<FontEncoder.Compression> compressions,
+      List<Character.UnicodeBlock> optionalBlocks, ExecutorService executor, int workers) {
+    this.source = source;
+    this.compressions = compressions;
+    this.optionalBlocks = optionalBlocks;
+    this.executor = executor;
+    this.workers = workers;
+  }
+
+  // Encoder settings that apply to all the candidates (see FontEncoder).
+  void setDeduplicateGlyphs(boolean deduplicateGlyphs) {
+    this.deduplicateGlyphs = deduplicateGlyphs;
+  }
+
+  void setKerningFormat(FontEncoder.KerningFormat kerningFormat) {
+    this.kerningFormat = kerningFormat;
+  }
+
+  void setLookupIndex(boolean lookupIndex) {
+    this.lookupIndex = lookupIndex;
+  }
+
+  // The highest alpha resolution to consider.
+  void setMaxAlphaBits(AlphaBits maxAlphaBits) {
+    this.maxAlphaBits = maxAlphaBits;
+  }
+
+  // Returns the best quality candidate that fits in the budget, or null if
+  // none does (see getSmallest()).
+  Candidate optimize(long budget) throws IOException {
+    for (int dropped = 0; dropped <= optionalBlocks.size(); ++dropped) {
+      List<Character.UnicodeBlock> droppedBlocks = optionalBlocks.subList(0, dropped);
+      List<Integer> minKerns = minKerns(droppedBlocks);
+      for (AlphaBits bits : DEPTHS) {
+        if (bits.bits() > maxAlphaBits.bits()) {
+          continue;
+        }
+        // Kerning pairs take a small part of the font data; if dropping all of
+        // them does not make it fit, nothing at this resolution does.
+        Candidate unkerned = size(bits, droppedBlocks, minKerns.get(minKerns.size() - 1));
+        if (unkerned.bytes > budget) {
+          continue;
+        }
+        for (int minKern : minKerns.subList(0, minKerns.size() - 1)) {
+          Candidate candidate = size(bits, droppedBlocks, minKern);
+          if (candidate.bytes <= budget) {
+            return candidate;
+          }
+        }
+        return unkerned;
+      }
+    }
+    return null;
+  }
+
+  // The smallest candidate sized by the last optimize().
+  Candidate getSmallest() {
+    return smallest;
+  }
+
+  // Number of candidates sized so far, each with every allowed compression.
+  int getCandidatesSized() {
+    return candidatesSized;
+  }
+
+  // The -min-kern values that make a difference, from keeping all the pairs
+  // (of the glyphs that are kept) to keeping none.
+  private List<Integer> minKerns(List<Character.UnicodeBlock> droppedBlocks) {
+    TreeSet<Integer> kerns = new TreeSet<>();
+    RooDisplayFont.KerningPairs pairs = source.getKerningPairs();
+    for (int i = 0; i < pairs.size(); ++i) {
+      if (!droppedBlocks.contains(Character.UnicodeBlock.of(pairs.getLeft(i)))
+          && !droppedBlocks.contains(Character.UnicodeBlock.of(pairs.getRight(i)))) {
+        kerns.add(pairs.getKern(i));
+      }
+    }
+    List<Integer> result = new ArrayList<>();
+    result.add(1);
+    for (int kern : kerns) {
+      if (kern > 1) {
+        result.add(kern);
+      }
+    }
+    if (!kerns.isEmpty()) {
+      result.add(kerns.last() + 1);
+    }
+    return result;
+  }
+
+  private Candidate size(AlphaBits bits, List<Character.UnicodeBlock> droppedBlocks, int minKern)
+      throws IOException {
+    RooDisplayFont font = derive(bits, droppedBlocks);
+    font.dropKerningPairs(minKern);
+    Candidate best = null;
+    // There is no RLE encoding for less than 4 bits.
+    List<FontEncoder.Compression> allowed = FontEncoder.GlyphEncoder.supportsRle(bits) ? compressions
+        : Collections.singletonList(FontEncoder.Compression.PLAIN);
+    for (FontEncoder.Compression compression : allowed) {
+      FontEncoder encoder = new FontEncoder(font, executor, workers);
+      encoder.setTimestamped(false);
+      encoder.setDeduplicateGlyphs(deduplicateGlyphs);
+      encoder.setKerningFormat(kerningFormat);
+      encoder.setLookupIndex(lookupIndex);
+      encoder.setSizeOnly(true);
+      encoder.setLengthCache(lengthCache);
+      encoder.writeDefinition(new BinaryWriter(OutputStream.nullOutputStream()), "font", compression);
+      if (best == null || encoder.getTotalBytes() < best.bytes) {
+        best = new Candidate(font, compression, minKern, droppedBlocks, encoder.getTotalBytes());
+      }
+    }
+    ++candidatesSized;
+    if (smallest == null || best.bytes < smallest.bytes) {
+      smallest = best;
+    }
+    return best;
+  }
+
+  // The font at the specified alpha resolution, without the glyphs of the
+  // dropped blocks, with all their kerning pairs.
+  private RooDisplayFont derive(AlphaBits bits, List<Character.UnicodeBlock> droppedBlocks) {
+    List<Glyph> glyphs = trimmed.computeIfAbsent(bits, b -> {
+      List<Glyph> result = new ArrayList<>();
+      for (Glyph glyph : source.getGlyphs()) {
+        result.add(glyph.trim(b));
+      }
+      return result;
+    });
+    if (droppedBlocks.isEmpty()) {
+      return new RooDisplayFont(source, bits, source.getCharset(), glyphs);
+    }
+    List<Glyph> kept = new ArrayList<>();
+    boolean ascii = true;
+    for (Glyph glyph : glyphs) {
+      if (!droppedBlocks.contains(Character.UnicodeBlock.of(glyph.getCodePoint()))) {
+        kept.add(glyph);
+        ascii &= glyph.getCodePoint() < 256;
+      }
+    }
+    return new RooDisplayFont(source, bits,
+        ascii ? RooDisplayFont.Charset.ASCII : source.getCharset(), kept);
+  }
+}
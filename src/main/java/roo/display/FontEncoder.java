@@ -1,29 +1,123 @@
 package roo.display;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 import hexwriter.HexWriter;
+import hexwriter.PayloadWriter;
 import roo.display.RooDisplayFont.Glyph;
-import roo.display.encode.*;
-import roo.display.encode.alpha4.*;
 
 class FontEncoder {
-  boolean rle;
+  // Number of glyphs per worker encoded ahead of writing the glyph data.
+  private static final int GLYPHS_PER_WORKER = 16;
+
+  enum Compression {
+    PLAIN, // All glyphs packed as is.
+    RLE, // All glyphs run-length encoded.
+    ADAPTIVE, // Each glyph encoded whichever way is smaller.
+  }
+
+  enum KerningFormat {
+    FLAT, // A list of (left, right, kern) triples.
+    CLASSES, // Class map and class matrix (see KerningClasses).
+  }
+
   final RooDisplayFont font;
+  final ExecutorService executor;
+  final int workers;
+
+  // Sizes of the glyph data written by the last writeDefinition(), and (with
+  // ADAPTIVE compression) the sizes it would have had with all glyphs plain,
+  // or all RLE.
+  int glyphDataBytes;
+  int plainGlyphDataBytes;
+  int rleGlyphDataBytes;
+  int rleGlyphs;
+
+  KerningFormat kerningFormat = KerningFormat.FLAT;
+  // Size of the kerning table written by the last writeDefinition(), and the
+  // size it would have had in the FLAT format.
+  int kerningBytes;
+  int flatKerningBytes;
+
+  // Whether to write the lookup index, and its size in the last
+  // writeDefinition().
+  boolean lookupIndex;
+  int lookupIndexBytes;
+  int lookupRanges;
+
+  // Whether to release the raster of each glyph once its data has been
+  // written (see setReleaseRasters()).
+  boolean releaseRasters;
+
+  // Sizes of the header, the glyph metrics, and the whole kerning table (with
+  // its format byte, if any), as written by the last writeDefinition(), and
+  // the bytes attributable to each glyph: its metrics, its data (unless it
+  // shares the data of an earlier glyph), and with flat kerning, the pairs
+  // that it is the left glyph of.
+  int headerBytes;
+  int metricsBytes;
+  int kerningTableBytes;
+  int[] glyphCosts;
+
+  // Time spent in the last writeDefinition() encoding glyphs (sizing,
+  // deduplicating and encoding them), and writing the font data out.
+  long encodeNanos;
+  long emitNanos;
+
+  // Whether to stamp the time of writing into the definition.
+  boolean timestamped = true;
+
+  // Whether to only compute the sizes of the font data, without encoding the
+  // glyph data; and the cache of encoded lengths, if any.
+  boolean sizeOnly;
+  LengthCache lengthCache;
+
+  // Whether glyphs with identical encoded data share a single copy of it.
+  boolean deduplicateGlyphs;
+  // Number of glyphs that share the data of another one, and the bytes saved,
+  // in the last writeDefinition().
+  int duplicateGlyphs;
+  int duplicateGlyphBytes;
 
   public FontEncoder(RooDisplayFont font) {
+    this(font, null, 1);
+  }
+
+  // As above, but encodes the glyphs using up to the specified number of
+  // workers, submitted to the specified executor. The output does not depend
+  // on the number of workers.
+  public FontEncoder(RooDisplayFont font, ExecutorService executor, int workers) {
     this.font = font;
+    this.executor = executor;
+    this.workers = (executor == null) ? 1 : Math.max(1, workers);
   }
 
   public RooDisplayFont getFont() {
     return font;
   }
 
+  // Enables releasing the raster of each glyph (see Glyph.releaseRaster()) as
+  // soon as its data has been written, so that the rasters of the glyphs
+  // written so far can be garbage collected while the rest are. The font can't
+  // be encoded again afterwards. Has no effect with setSizeOnly().
+  public void setReleaseRasters(boolean releaseRasters) {
+    this.releaseRasters = releaseRasters;
+  }
+
   public void writeDeclaration(Writer os, String var) throws IOException {
     HexWriter hexWriter = new HexWriter(os);
     hexWriter.printComment("Font " + font.getFont().getPSName() + " (" + font.getFont().getName() + ")\n");
@@ -31,27 +125,129 @@ class FontEncoder {
   }
 
   public int writeDefinition(Writer os, String var, boolean rle) throws IOException {
-    final RooDisplayFont.MaxFontSize maxFontSize;
-    HexWriter hexWriter = new HexWriter(os);
-    GlyphEncoder glyphEncoder = new GlyphEncoder(font.getAlphaBits(), rle);
+    return writeDefinition(os, var, rle ? Compression.RLE : Compression.PLAIN);
+  }
+
+  // With ADAPTIVE compression, the most significant bit of each glyph offset
+  // tells whether that glyph is RLE-encoded; the header then has version
+  // 0x0102 (or later), and the value 2 in place of the RLE flag.
+  //
+  // With the CLASSES kerning format, the header has version 0x0103, and the
+  // kerning table (still preceded by the count of the pairs it represents in
+  // the header) consists of:
+  //   format: 1 for a dense class matrix, 2 for a sparse one (1 byte)
+  //   left and right class counts, not including class 0 (2 bytes each)
+  //   class map: left and right class of each glyph, in the order of the
+  //     glyph metrics (1 byte each if all classes < 256, 2 bytes otherwise)
+  //   dense matrix: kern of each (left, right) class pair (1 byte each;
+  //     0 if none), row by row, starting with classes (1, 1)
+  //   sparse matrix: start index of the entries of each left class, plus the
+  //     end (2 bytes each), followed by the entries: right class, kern
+  // Class 0 means that the glyph does not kern on that side.
+  //
+  // Glyph metrics are always sorted by code point, and kerning pairs by (left,
+  // right) code point (as RooDisplayFont keeps them). From version 0x0103 on,
+  // a non-empty kerning table starts with its format (1 byte): 0 for the flat
+  // list of pairs, or the class matrix format above.
+  //
+  // With the lookup index, the header has version 0x0104, and the index follows
+  // the kerning table:
+  //   range count (2 bytes)
+  //   ranges of consecutive code points: first and last code point (1 byte
+  //     each for ASCII, 2 bytes for UTF-8), index of the first glyph (2 bytes)
+  //   with flat kerning pairs only: for each glyph, the index of the first pair
+  //     with that glyph on the left, plus the pair count (2 bytes each)
+  public int writeDefinition(Writer os, String var, Compression compression) throws IOException {
+    return writeDefinition(new HexWriter(os), var, compression);
+  }
+
+  // As above, but writes the font data to the specified payload writer, e.g.
+  // a BinaryWriter, or an RdfWriter. Comments and declarations are up to the
+  // writer (and ignored by the binary ones).
+  public int writeDefinition(PayloadWriter writer, String var, Compression compression) throws IOException {
+    // There is no RLE encoding for less than 4 bits.
+    if (!GlyphEncoder.supportsRle(font.getAlphaBits())) {
+      compression = Compression.PLAIN;
+    }
+    final boolean adaptive = (compression == Compression.ADAPTIVE);
+    final boolean rle = (compression == Compression.RLE);
+    GlyphEncoder plainEncoder = new GlyphEncoder(font.getAlphaBits(), false);
+    GlyphEncoder rleEncoder =
+        (compression == Compression.PLAIN) ? null : new GlyphEncoder(font.getAlphaBits(), true);
     List<Glyph> glyphs = font.getGlyphs();
+    encodeNanos = 0;
+    emitNanos = 0;
+    long encodeStart = System.nanoTime();
 
-    // Actually encode all glyphs. We need this to know the sizes in advance, to
-    // generate offsets.
-    byte[][] encodedGlyphs = new byte[glyphs.size()][];
+    // We need to know the encoded sizes in advance, to generate offsets. Only
+    // keep the sizes here; the glyphs get encoded again, a window at a time,
+    // when writing the glyph data. This way, the encoded glyphs never need to
+    // be held in memory all at once. The lengths recorded by the font as its
+    // glyphs got imported, if any, are used as they are, unless another cache
+    // was set.
+    LengthCache lengths = lengthCache != null ? lengthCache : font.getLengthCache();
+    if (lengths == null) {
+      lengths = new LengthCache();
+    }
+    final LengthCache cache = lengths;
+    int[] encodedLengths = new int[glyphs.size()];
+    int[] plainLengths = new int[glyphs.size()];
+    boolean[] useRle = new boolean[glyphs.size()];
+    forEachInParallel(glyphs.size(), () -> {
+      GlyphBuffer buffer = new GlyphBuffer();
+      return i -> {
+        plainLengths[i] = cache.encodedLength(plainEncoder, glyphs.get(i), buffer);
+        if (rleEncoder == null) {
+          encodedLengths[i] = plainLengths[i];
+          return;
+        }
+        encodedLengths[i] = cache.encodedLength(rleEncoder, glyphs.get(i), buffer);
+        useRle[i] = !adaptive || encodedLengths[i] < plainLengths[i];
+      };
+    });
+    glyphDataBytes = 0;
+    plainGlyphDataBytes = 0;
+    rleGlyphDataBytes = 0;
+    rleGlyphs = 0;
     for (int i = 0; i < glyphs.size(); ++i) {
-      encodedGlyphs[i] = glyphEncoder.encodeGlyph(glyphs.get(i));
+      plainGlyphDataBytes += plainLengths[i];
+      rleGlyphDataBytes += encodedLengths[i];
+      if (!useRle[i]) {
+        encodedLengths[i] = plainLengths[i];
+      } else {
+        ++rleGlyphs;
+      }
     }
 
-    // Determine the maximum offset into the glyph array space.
+    // Glyphs with the same data as an earlier glyph point to its data, rather
+    // than having their own copy.
+    int[] dataOwners = deduplicateGlyphs ? findDuplicates(glyphs, useRle, plainEncoder, rleEncoder, cache)
+        : null;
+    encodeNanos += System.nanoTime() - encodeStart;
+    int[] offsets = new int[glyphs.size()];
+    duplicateGlyphs = 0;
+    duplicateGlyphBytes = 0;
+
+    // Determine the offsets, and the maximum offset into the glyph array space.
     int maxOffset = 0;
-    if (glyphs.size() > 0) {
-      for (int i = 0; i < glyphs.size() - 1; ++i) {
-        maxOffset += encodedGlyphs[i].length;
+    for (int i = 0; i < glyphs.size(); ++i) {
+      if (dataOwners != null && dataOwners[i] != i) {
+        offsets[i] = offsets[dataOwners[i]];
+        ++duplicateGlyphs;
+        duplicateGlyphBytes += encodedLengths[i];
+        continue;
       }
+      offsets[i] = glyphDataBytes;
+      maxOffset = glyphDataBytes;
+      glyphDataBytes += encodedLengths[i];
+    }
+    // With adaptive compression, offsets have one bit less for the value.
+    if (adaptive) {
+      maxOffset <<= 1;
     }
     final int offsetBytes = (maxOffset < (1 << 8)) ? 1 : (maxOffset < (1 << 16)) ? 2 : 3;
-    // OffsetWriter offsetWriter = new OffsetWriter(offsetBytes, hexWriter);
+    final int rleFlag = adaptive ? 1 << (8 * offsetBytes - 1) : 0;
+    // OffsetWriter offsetWriter = new OffsetWriter(offsetBytes, writer);
 
     int maxFontMetricBytes = 1;
     int defaultSpaceAdvance = 0;
@@ -72,7 +268,6 @@ class FontEncoder {
       }
     }
 
-    boolean fixedPoint = (minAdvance == maxAdvance && font.getKerningPairs().isEmpty());
     // int linesep = (int) Math.round(0.35 * (font.getAscent() +
     // font.getDescent()));
     int linesep = Math.max(
@@ -90,25 +285,60 @@ class FontEncoder {
       defaultSpaceAdvance = font.getAscent() / 2;
     }
 
-    FontMetricWriter metricWriter = new FontMetricWriter(maxFontMetricBytes, hexWriter);
-    OffsetWriter offsetWriter = new OffsetWriter(offsetBytes, hexWriter);
+    FontMetricWriter metricWriter = new FontMetricWriter(maxFontMetricBytes, writer);
+    OffsetWriter offsetWriter = new OffsetWriter(offsetBytes, writer);
 
-    hexWriter.printComment("Font " + font.getFont().getPSName() + " (" + font.getFont().getName() + ")\n");
-    hexWriter.printComment("Generated on " + new Date() + "\n");
-    hexWriter.beginStatic(var);
-    hexWriter.newLine();
-    hexWriter.printComment("Header");
-    hexWriter.newLine();
-    hexWriter.printHex16(0x0101);
-    hexWriter.printHex8(font.getAlphaBits().bits());
-    hexWriter.printHex8(font.getCharset() == RooDisplayFont.Charset.ASCII ? 1 : 2);
-    hexWriter.printHex8(maxFontMetricBytes);
-    hexWriter.printHex8(offsetBytes);
-    hexWriter.printHex8(rle ? 0x01 : 0x00);
-    hexWriter.printHex16(glyphs.size());
-    hexWriter.printHex16(font.getKerningPairs().size());
-
-    hexWriter.newLine();
+    long emitStart = System.nanoTime();
+    writer.printComment("Font " + font.getFont().getPSName() + " (" + font.getFont().getName() + ")\n");
+    if (timestamped) {
+      writer.printComment("Generated on " + new Date() + "\n");
+    }
+    writer.beginStatic(var);
+    writer.newLine();
+    writer.printComment("Header");
+    writer.newLine();
+    KerningClasses kerningClasses = null;
+    if (kerningFormat == KerningFormat.CLASSES && !font.getKerningPairs().isEmpty()) {
+      kerningClasses = new KerningClasses(glyphs, font.getKerningPairs());
+    }
+    int cpBytes = (font.getCharset() == RooDisplayFont.Charset.ASCII) ? 1 : 2;
+    flatKerningBytes = font.getKerningPairs().size() * (2 * cpBytes + 1);
+    kerningBytes = (kerningClasses == null) ? flatKerningBytes : kerningClasses.getEncodedSize();
+    final int version = lookupIndex ? 0x0104 : kerningClasses != null ? 0x0103 : adaptive ? 0x0102 : 0x0101;
+    headerBytes = 11 + 11 * maxFontMetricBytes + cpBytes;
+    int glyphMetricsBytes = cpBytes + 5 * maxFontMetricBytes + offsetBytes;
+    metricsBytes = glyphs.size() * glyphMetricsBytes;
+    kerningTableBytes = kerningBytes;
+    if (kerningClasses == null && version >= 0x0103 && !font.getKerningPairs().isEmpty()) {
+      ++kerningTableBytes;
+    }
+    glyphCosts = new int[glyphs.size()];
+    for (int i = 0, pair = 0; i < glyphs.size(); ++i) {
+      glyphCosts[i] = glyphMetricsBytes;
+      if (dataOwners == null || dataOwners[i] == i) {
+        glyphCosts[i] += encodedLengths[i];
+      }
+      // Both are sorted by code point.
+      while (pair < font.getKerningPairs().size()
+          && font.getKerningPairs().getLeft(pair) < glyphs.get(i).getCodePoint()) {
+        ++pair;
+      }
+      while (kerningClasses == null && pair < font.getKerningPairs().size()
+          && font.getKerningPairs().getLeft(pair) == glyphs.get(i).getCodePoint()) {
+        glyphCosts[i] += 2 * cpBytes + 1;
+        ++pair;
+      }
+    }
+    writer.printHex16(version);
+    writer.printHex8(font.getAlphaBits().bits());
+    writer.printHex8(font.getCharset() == RooDisplayFont.Charset.ASCII ? 1 : 2);
+    writer.printHex8(maxFontMetricBytes);
+    writer.printHex8(offsetBytes);
+    writer.printHex8(adaptive ? 0x02 : rle ? 0x01 : 0x00);
+    writer.printHex16(glyphs.size());
+    writer.printHex16(font.getKerningPairs().size());
+
+    writer.newLine();
     metricWriter.print(maxBoundingBox.xMin);
     metricWriter.print(maxBoundingBox.yMin);
     metricWriter.print(maxBoundingBox.xMax);
@@ -124,29 +354,28 @@ class FontEncoder {
     // Default glyph to substitute if a requested glyph is missing.
     switch (font.getCharset()) {
       case ASCII: {
-        hexWriter.printHex8('_');
+        writer.printHex8('_');
         break;
       }
       case UTF8: {
-        hexWriter.printHex16('_');
+        writer.printHex16('_');
         break;
       }
     }
 
-    hexWriter.newLine();
-    hexWriter.newLine();
+    writer.newLine();
+    writer.newLine();
 
-    hexWriter.printComment("Glyph metrics");
-    int currentOffset = 0;
+    writer.printComment("Glyph metrics");
     for (int i = 0; i < glyphs.size(); ++i) {
       RooDisplayFont.Glyph glyph = glyphs.get(i);
-      hexWriter.newLine();
+      writer.newLine();
       switch (font.getCharset()) {
         case ASCII:
-          hexWriter.printHex8(glyph.getCodePoint());
+          writer.printHex8(glyph.getCodePoint());
           break;
         case UTF8:
-          hexWriter.printHex16(glyph.getCodePoint());
+          writer.printHex16(glyph.getCodePoint());
           break;
       }
       RooDisplayFont.BoundingBox boundingBox = glyph.getBoundingBox();
@@ -155,100 +384,874 @@ class FontEncoder {
       metricWriter.print(boundingBox.xMax);
       metricWriter.print(boundingBox.yMax);
       metricWriter.print(glyph.getAdvance());
-      offsetWriter.print(currentOffset);
+      offsetWriter.print(useRle[i] ? (offsets[i] | rleFlag) : offsets[i]);
 
       String comment = ("\"" + (char) glyph.getCodePoint() + "\"");
       comment += String.format(" (U+%04X)", glyph.getCodePoint());
+      if (dataOwners != null && dataOwners[i] != i) {
+        comment += String.format(", same data as U+%04X", glyphs.get(dataOwners[i]).getCodePoint());
+      }
       // Encode in UTF-8, because why not. It's just a comment.
-      hexWriter.printComment(comment);
-      currentOffset += encodedGlyphs[i].length;
+      writer.printComment(comment);
     }
 
-    hexWriter.newLine();
-    hexWriter.newLine();
-    hexWriter.printComment("Kerning pairs");
-    for (RooDisplayFont.KerningPair i : font.getKerningPairs()) {
-      RooDisplayFont.CodePointPair cp = i.codePoints;
-      hexWriter.newLine();
+    writer.newLine();
+    writer.newLine();
+    RooDisplayFont.KerningPairs kerningPairs = font.getKerningPairs();
+    if (kerningClasses != null) {
+      writeKerningClasses(writer, glyphs, kerningClasses);
+    } else {
+      writer.printComment("Kerning pairs");
+      if (version >= 0x0103 && !kerningPairs.isEmpty()) {
+        writer.newLine();
+        writer.printHex8(0);
+      }
+    }
+    for (int i = 0; kerningClasses == null && i < kerningPairs.size(); ++i) {
+      int left = kerningPairs.getLeft(i);
+      int right = kerningPairs.getRight(i);
+      int kern = kerningPairs.getKern(i);
+      writer.newLine();
       switch (font.getCharset()) {
         case ASCII:
-          hexWriter.printHex8(cp.left);
-          hexWriter.printHex8(cp.right);
+          writer.printHex8(left);
+          writer.printHex8(right);
           break;
         case UTF8:
-          hexWriter.printHex16(cp.left);
-          hexWriter.printHex16(cp.right);
+          writer.printHex16(left);
+          writer.printHex16(right);
           break;
       }
-      if (i.kern < 1 || i.kern > 255) {
-        throw new IllegalArgumentException("Kern outside range: " + i.kern);
+      if (kern < 1 || kern > 255) {
+        throw new IllegalArgumentException("Kern outside range: " + kern);
       }
-      hexWriter.printHex8(i.kern);
-      hexWriter
-          .printComment("" + (char) cp.left + (char) cp.right +
-              String.format(" (U+%04X U+%04X)", cp.left, cp.right));
+      writer.printHex8(kern);
+      writer
+          .printComment("" + (char) left + (char) right +
+              String.format(" (U+%04X U+%04X)", left, right));
     }
 
-    hexWriter.newLine();
-    hexWriter.newLine();
-    hexWriter.printComment("Glyph data");
+    lookupIndexBytes = 0;
+    lookupRanges = 0;
+    if (lookupIndex) {
+      writeLookupIndex(writer, glyphs, kerningClasses == null ? kerningPairs : null);
+    }
+
+    writer.newLine();
+    writer.newLine();
+    writer.printComment("Glyph data");
+    GlyphBuffer[] window = new GlyphBuffer[workers * GLYPHS_PER_WORKER];
+    for (int i = 0; i < window.length; ++i) {
+      window[i] = new GlyphBuffer();
+    }
+    emitNanos += System.nanoTime() - emitStart;
+    for (int start = 0; !sizeOnly && start < glyphs.size(); start += window.length) {
+      final int windowStart = start;
+      int windowSize = Math.min(window.length, glyphs.size() - start);
+      encodeStart = System.nanoTime();
+      forEachInParallel(windowSize, () -> i -> {
+        window[i].reset();
+        if (dataOwners != null && dataOwners[windowStart + i] != windowStart + i) {
+          return;
+        }
+        GlyphEncoder encoder = useRle[windowStart + i] ? rleEncoder : plainEncoder;
+        encoder.encodeGlyph(glyphs.get(windowStart + i), window[i]);
+      });
+      encodeNanos += System.nanoTime() - encodeStart;
+      emitStart = System.nanoTime();
+      for (int i = 0; i < windowSize; ++i) {
+        RooDisplayFont.Glyph glyph = glyphs.get(windowStart + i);
+        if (releaseRasters) {
+          // Already encoded into the window, or sharing the data of an earlier
+          // glyph.
+          glyph.releaseRaster();
+        }
+        if (dataOwners != null && dataOwners[windowStart + i] != windowStart + i) {
+          continue;
+        }
+        writer.newLine();
+        String comment = ("\"" + (char) glyph.getCodePoint() + "\"");
+        comment += String.format(" (U+%04X)", glyph.getCodePoint());
+        writer.printComment(comment);
+        writer.newLine();
+        if (window[i].size() != encodedLengths[windowStart + i]) {
+          throw new IllegalStateException(String.format(
+              "Inconsistent encoding of U+%04X: %d vs %d bytes", glyph.getCodePoint(), window[i].size(),
+              encodedLengths[windowStart + i]));
+        }
+        printBuffer(writer, window[i]);
+      }
+      emitNanos += System.nanoTime() - emitStart;
+    }
+
+    emitStart = System.nanoTime();
+    writer.end();
+    emitNanos += System.nanoTime() - emitStart;
+
+    return writer.getBytesWritten();
+  }
+
+  private static void writeKerningClasses(PayloadWriter writer, List<Glyph> glyphs, KerningClasses classes)
+      throws IOException {
+    writer.printComment("Kerning classes: " + classes);
+    writer.newLine();
+    writer.printHex8(classes.isDense() ? 1 : 2);
+    writer.printHex16(classes.getLeftClassCount());
+    writer.printHex16(classes.getRightClassCount());
+    ClassWriter classWriter = new ClassWriter(classes.getClassBytes(), writer);
     for (int i = 0; i < glyphs.size(); ++i) {
-      RooDisplayFont.Glyph glyph = glyphs.get(i);
-      hexWriter.newLine();
-      String comment = ("\"" + (char) glyph.getCodePoint() + "\"");
-      comment += String.format(" (U+%04X)", glyph.getCodePoint());
-      hexWriter.printComment(comment);
-      hexWriter.newLine();
-      hexWriter.printBuffer(encodedGlyphs[i]);
+      writer.newLine();
+      classWriter.print(classes.getLeftClass(i));
+      classWriter.print(classes.getRightClass(i));
+      writer.printComment(String.format("\"%c\" (U+%04X)", (char) glyphs.get(i).getCodePoint(),
+          glyphs.get(i).getCodePoint()));
+    }
+    writer.newLine();
+    writer.newLine();
+    writer.printComment("Kerning class matrix");
+    if (classes.isDense()) {
+      for (int left = 1; left <= classes.getLeftClassCount(); ++left) {
+        writer.newLine();
+        for (int right = 1; right <= classes.getRightClassCount(); ++right) {
+          printKern(writer, classes.getKern(left, right));
+        }
+      }
+      return;
+    }
+    writer.newLine();
+    int start = 0;
+    writer.printHex16(start);
+    for (int left = 1; left <= classes.getLeftClassCount(); ++left) {
+      for (int right = 1; right <= classes.getRightClassCount(); ++right) {
+        if (classes.getKern(left, right) != 0) {
+          ++start;
+        }
+      }
+      writer.printHex16(start);
+    }
+    for (int left = 1; left <= classes.getLeftClassCount(); ++left) {
+      writer.newLine();
+      for (int right = 1; right <= classes.getRightClassCount(); ++right) {
+        int kern = classes.getKern(left, right);
+        if (kern != 0) {
+          classWriter.print(right);
+          printKern(writer, kern);
+        }
+      }
     }
+  }
+
+  private void writeLookupIndex(PayloadWriter writer, List<Glyph> glyphs,
+      RooDisplayFont.KerningPairs kerningPairs) throws IOException {
+    int cpBytes = (font.getCharset() == RooDisplayFont.Charset.ASCII) ? 1 : 2;
+    List<Integer> rangeStarts = new ArrayList<>();
+    for (int i = 0; i < glyphs.size(); ++i) {
+      int codepoint = glyphs.get(i).getCodePoint();
+      if (i > 0 && codepoint <= glyphs.get(i - 1).getCodePoint()) {
+        throw new IllegalStateException(String.format("Glyphs not sorted at U+%04X", codepoint));
+      }
+      if (i == 0 || codepoint != glyphs.get(i - 1).getCodePoint() + 1) {
+        rangeStarts.add(i);
+      }
+    }
+    lookupRanges = rangeStarts.size();
+    lookupIndexBytes = 2 + lookupRanges * (2 * cpBytes + 2);
+
+    writer.newLine();
+    writer.newLine();
+    writer.printComment("Lookup index: " + lookupRanges + " code point ranges");
+    writer.newLine();
+    writer.printHex16(lookupRanges);
+    for (int r = 0; r < lookupRanges; ++r) {
+      int first = rangeStarts.get(r);
+      int last = (r + 1 < lookupRanges ? rangeStarts.get(r + 1) : glyphs.size()) - 1;
+      writer.newLine();
+      printCodePoint(writer, glyphs.get(first).getCodePoint());
+      printCodePoint(writer, glyphs.get(last).getCodePoint());
+      writer.printHex16(first);
+      writer.printComment(String.format("U+%04X..U+%04X", glyphs.get(first).getCodePoint(),
+          glyphs.get(last).getCodePoint()));
+    }
+    if (kerningPairs == null || kerningPairs.isEmpty()) {
+      return;
+    }
+    lookupIndexBytes += 2 * (glyphs.size() + 1);
+    writer.newLine();
+    writer.newLine();
+    writer.printComment("Kerning pair start, per left glyph");
+    writer.newLine();
+    int pair = 0;
+    for (int i = 0; i < glyphs.size(); ++i) {
+      int codepoint = glyphs.get(i).getCodePoint();
+      while (pair < kerningPairs.size() && kerningPairs.getLeft(pair) < codepoint) {
+        ++pair;
+      }
+      writer.printHex16(pair);
+      if (i % 8 == 7) {
+        writer.newLine();
+      }
+    }
+    writer.printHex16(kerningPairs.size());
+  }
+
+  private void printCodePoint(PayloadWriter writer, int codepoint) throws IOException {
+    switch (font.getCharset()) {
+      case ASCII:
+        writer.printHex8(codepoint);
+        break;
+      case UTF8:
+        writer.printHex16(codepoint);
+        break;
+    }
+  }
+
+  // Enables the lookup index: code point ranges, mapping code points to glyph
+  // indexes in O(1) (per range), and the start of the kerning pairs of each
+  // left glyph.
+  public void setLookupIndex(boolean lookupIndex) {
+    this.lookupIndex = lookupIndex;
+  }
+
+  // Size of the lookup index written by the last writeDefinition(), if any.
+  public int getLookupIndexBytes() {
+    return lookupIndexBytes;
+  }
+
+  // Number of code point ranges in the last lookup index.
+  public int getLookupRanges() {
+    return lookupRanges;
+  }
+
+  private static void printKern(PayloadWriter writer, int kern) throws IOException {
+    if (kern < 0 || kern > 255) {
+      throw new IllegalArgumentException("Kern outside range: " + kern);
+    }
+    writer.printHex8(kern);
+  }
+
+  // Enables stamping the time of writing into the definition (as a comment).
+  // Disable for reproducible output.
+  public void setTimestamped(boolean timestamped) {
+    this.timestamped = timestamped;
+  }
+
+  // Makes writeDefinition() only compute the sizes of the font data (see
+  // getTotalBytes()): the glyph data is sized, but not encoded, nor written.
+  // For quick estimates, e.g. of candidate configurations.
+  public void setSizeOnly(boolean sizeOnly) {
+    this.sizeOnly = sizeOnly;
+  }
 
-    hexWriter.end();
+  // Makes writeDefinition() take the encoded lengths of the glyphs from the
+  // specified cache, and add the missing ones to it. By default, the lengths
+  // recorded by the font as its glyphs got imported are used, if any (see
+  // RooDisplayFont.getLengthCache()).
+  public void setLengthCache(LengthCache lengthCache) {
+    this.lengthCache = lengthCache;
+  }
+
+  // Size of the header written by the last writeDefinition().
+  public int getHeaderBytes() {
+    return headerBytes;
+  }
+
+  // Size of the glyph metrics written by the last writeDefinition().
+  public int getMetricsBytes() {
+    return metricsBytes;
+  }
+
+  // Size of the kerning table written by the last writeDefinition(), in
+  // whichever format, including its format byte (if any).
+  public int getKerningTableBytes() {
+    return kerningTableBytes;
+  }
+
+  // Exact size of the font data written by the last writeDefinition().
+  public int getTotalBytes() {
+    return headerBytes + metricsBytes + kerningTableBytes + lookupIndexBytes + glyphDataBytes;
+  }
+
+  // Bytes attributable to each glyph (in the order of font.getGlyphs()) in the
+  // last writeDefinition(): what leaving the glyph out would save, roughly.
+  // Class kerning and the lookup index are not attributed to glyphs.
+  public int[] getGlyphCosts() {
+    return glyphCosts;
+  }
+
+  // Time spent encoding glyphs in the last writeDefinition().
+  public long getEncodeNanos() {
+    return encodeNanos;
+  }
+
+  // Time spent writing the font data out in the last writeDefinition().
+  public long getEmitNanos() {
+    return emitNanos;
+  }
+
+  // Selects the format of the kerning table.
+  public void setKerningFormat(KerningFormat kerningFormat) {
+    this.kerningFormat = kerningFormat;
+  }
 
-    return hexWriter.getBytesWritten();
+  // Size of the kerning table written by the last writeDefinition().
+  public int getKerningBytes() {
+    return kerningBytes;
+  }
+
+  // Size the kerning table written by the last writeDefinition() would have
+  // had in the FLAT format.
+  public int getFlatKerningBytes() {
+    return flatKerningBytes;
+  }
+
+  // Enables sharing the data of glyphs that encode identically. Only the
+  // offsets in the glyph metrics change; the format stays the same.
+  public void setDeduplicateGlyphs(boolean deduplicateGlyphs) {
+    this.deduplicateGlyphs = deduplicateGlyphs;
+  }
+
+  // Number of glyphs that shared the data of another glyph in the last
+  // writeDefinition().
+  public int getDuplicateGlyphs() {
+    return duplicateGlyphs;
+  }
+
+  // Bytes saved by sharing glyph data in the last writeDefinition().
+  public int getDuplicateGlyphBytes() {
+    return duplicateGlyphBytes;
+  }
+
+  // Returns, for each glyph, the index of the first glyph with identical
+  // encoded data (possibly itself). Glyphs are matched by the hash of their
+  // data (from the length cache), and matches are confirmed by comparing the
+  // data. Distinct glyphs with the same hash are chained, so that a collision
+  // does not hide a later match.
+  private int[] findDuplicates(List<Glyph> glyphs, boolean[] useRle, GlyphEncoder plainEncoder,
+      GlyphEncoder rleEncoder, LengthCache cache) {
+    long[] hashes = new long[glyphs.size()];
+    forEachInParallel(glyphs.size(), () -> {
+      GlyphBuffer buffer = new GlyphBuffer();
+      return i -> hashes[i] = cache.get(useRle[i] ? rleEncoder : plainEncoder, glyphs.get(i), buffer).hash;
+    });
+    int[] owners = new int[glyphs.size()];
+    // For each owner, the previous owner with the same hash, or -1.
+    int[] previousWithHash = new int[glyphs.size()];
+    LongIntHashMap lastByHash = new LongIntHashMap(glyphs.size());
+    // Encoded data of the owners that have been compared, so that each glyph
+    // gets encoded at most once here.
+    byte[][] data = new byte[glyphs.size()][];
+    for (int i = 0; i < glyphs.size(); ++i) {
+      owners[i] = i;
+      GlyphEncoder encoder = useRle[i] ? rleEncoder : plainEncoder;
+      int last = lastByHash.get(hashes[i]);
+      for (int owner = last; owner >= 0; owner = previousWithHash[owner]) {
+        if (useRle[owner] != useRle[i]) {
+          continue;
+        }
+        if (data[i] == null) {
+          data[i] = encoder.encodeGlyph(glyphs.get(i));
+        }
+        if (data[owner] == null) {
+          data[owner] = encoder.encodeGlyph(glyphs.get(owner));
+        }
+        if (Arrays.equals(data[i], data[owner])) {
+          owners[i] = owner;
+          data[i] = null;
+          break;
+        }
+      }
+      if (owners[i] == i) {
+        previousWithHash[i] = last;
+        lastByHash.put(hashes[i], i);
+      }
+    }
+    return owners;
+  }
+
+  // 64-bit FNV-1a hash of the encoded glyph data and its encoding.
+  private static long hash(GlyphBuffer buffer, boolean rle) {
+    long hash = 0xcbf29ce484222325L;
+    byte[] data = buffer.array();
+    for (int i = 0; i < buffer.size(); ++i) {
+      hash = (hash ^ (data[i] & 0xFF)) * 0x100000001b3L;
+    }
+    hash = (hash ^ buffer.size()) * 0x100000001b3L;
+    return (hash ^ (rle ? 1 : 0)) * 0x100000001b3L;
+  }
+
+  // Open-addressing hash map from long keys to non-negative int values, without
+  // boxing, for up to the specified number of entries.
+  private static class LongIntHashMap {
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+
+    LongIntHashMap(int maxEntries) {
+      int capacity = Integer.highestOneBit(Math.max(4, maxEntries) * 2) * 2;
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(values, -1);
+      mask = capacity - 1;
+    }
+
+    // Returns the value for the key, or -1 if absent.
+    int get(long key) {
+      for (int i = slot(key); values[i] >= 0; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return values[i];
+        }
+      }
+      return -1;
+    }
+
+    void put(long key, int value) {
+      int i = slot(key);
+      while (values[i] >= 0 && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = value;
+    }
+
+    private int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+  }
+
+  // Size of the glyph data written by the last writeDefinition().
+  public int getGlyphDataBytes() {
+    return glyphDataBytes;
+  }
+
+  // Size the glyph data would have had with all glyphs plain (i.e. unencoded),
+  // as of the last writeDefinition().
+  public int getPlainGlyphDataBytes() {
+    return plainGlyphDataBytes;
+  }
+
+  // Size the glyph data would have had with all glyphs RLE-encoded. Only
+  // available after writeDefinition() with ADAPTIVE compression.
+  public int getRleGlyphDataBytes() {
+    return rleGlyphDataBytes;
+  }
+
+  // Number of glyphs RLE-encoded by the last writeDefinition().
+  public int getRleGlyphs() {
+    return rleGlyphs;
   }
 
   public static class GlyphEncoder {
     private final RooDisplayFont.AlphaBits alphaBits;
     private final boolean rle;
+    // Quantized alpha value for each 8-bit raster value.
+    private final byte[] levels = new byte[256];
 
-    private static Encoder createEncoder(RooDisplayFont.AlphaBits alphaBits, boolean rle, OutputStream os) {
-      switch (alphaBits.bits()) {
-        case 4:
-          return new Alpha4EncoderFactory().create(rle, os);
-        default:
-          throw new UnsupportedOperationException();
-      }
+    static boolean supportsRle(RooDisplayFont.AlphaBits alphaBits) {
+      return alphaBits.bits() >= 4;
     }
 
     public GlyphEncoder(RooDisplayFont.AlphaBits alphaBits, boolean rle) {
+      if (rle && !supportsRle(alphaBits)) {
+        throw new UnsupportedOperationException("No RLE encoding for " + alphaBits.bits() + "-bit alpha");
+      }
       this.alphaBits = alphaBits;
       this.rle = rle;
+      for (int i = 0; i < 256; ++i) {
+        levels[i] = (byte) alphaBits.quantize(i);
+      }
     }
 
     public byte[] encodeGlyph(RooDisplayFont.Glyph glyph) {
+      GlyphBuffer buffer = new GlyphBuffer();
+      encodeGlyph(glyph, buffer);
+      return Arrays.copyOf(buffer.array(), buffer.size());
+    }
+
+    // Returns the size of the encoded glyph. The buffer is used as scratch
+    // space, if the size can't be determined without actually encoding.
+    public int encodedLength(RooDisplayFont.Glyph glyph, GlyphBuffer buffer) {
+      if (!rle) {
+        RooDisplayFont.BoundingBox bbox = glyph.getBoundingBox();
+        return (bbox.getWidth() * bbox.getHeight() * alphaBits.bits() + 7) / 8;
+      }
+      buffer.reset();
+      encodeGlyph(glyph, buffer);
+      return buffer.size();
+    }
+
+    // Appends the encoded glyph to the buffer.
+    public void encodeGlyph(RooDisplayFont.Glyph glyph, GlyphBuffer buffer) {
       int width = glyph.getBoundingBox().getWidth();
       int height = glyph.getBoundingBox().getHeight();
-      ByteArrayOutputStream os = new ByteArrayOutputStream();
-      Encoder encoder = createEncoder(alphaBits, rle, os);
-      try {
-        for (int rowid = 0; rowid < height; ++rowid) {
-          for (int colid = 0; colid < width; ++colid) {
-            encoder.encodePixel(glyph.getPixelColor(colid, rowid));
+      byte[] raster = glyph.getRaster();
+      if (!rle) {
+        encodePacked(raster, width * height, buffer);
+      } else if (alphaBits.bits() == 8) {
+        encodeRle8(raster, width * height, buffer);
+      } else {
+        encodeRle4(raster, width * height, buffer);
+      }
+    }
+
+    // Returns the end of the run of equal quantized pixels that starts at the
+    // specified index.
+    private int runEnd(byte[] raster, int start, int end) {
+      byte value = levels[raster[start] & 0xFF];
+      int i = start + 1;
+      while (i < end && levels[raster[i] & 0xFF] == value) {
+        ++i;
+      }
+      return i;
+    }
+
+    // Run-length encodes the pixels as the RLE encoder of Alpha8EncoderFactory
+    // (MultiByteRleEncoder) does, a run at a time rather than pixel by pixel:
+    // runs of 2 or more are written as a run header and the value, and the
+    // single pixels between them as a literal header and the values. Headers
+    // are the count minus one, as a varint of 7-bit groups, most significant
+    // first; the first byte has the run flag (0x80), and 6 bits of the count.
+    private void encodeRle8(byte[] raster, int count, GlyphBuffer buffer) {
+      int literalStart = 0;
+      int i = 0;
+      while (i < count) {
+        int end = runEnd(raster, i, count);
+        if (end - i >= 2) {
+          if (literalStart < i) {
+            writeLiterals8(raster, literalStart, i, buffer);
           }
+          writeVarInt8(true, end - i - 1, false, buffer);
+          buffer.write(levels[raster[i] & 0xFF]);
+          literalStart = end;
+        }
+        i = end;
+      }
+      // Like MultiByteRleEncoder, writes an (empty) literal header for an empty
+      // glyph.
+      if (literalStart < count || count == 0) {
+        writeLiterals8(raster, literalStart, count, buffer);
+      }
+    }
+
+    private void writeLiterals8(byte[] raster, int start, int end, GlyphBuffer buffer) {
+      writeVarInt8(false, end - start - 1, false, buffer);
+      for (int i = start; i < end; ++i) {
+        buffer.write(levels[raster[i] & 0xFF]);
+      }
+    }
+
+    private static void writeVarInt8(boolean run, int value, boolean more, GlyphBuffer buffer) {
+      if (value < 64) {
+        buffer.write((run ? 0x80 : 0) | (more ? 0x40 : 0) | value);
+      } else {
+        writeVarInt8(run, value / 128, true, buffer);
+        buffer.write((more ? 0x80 : 0) | (value % 128));
+      }
+    }
+
+    // Run-length encodes the pixels as the RLE encoder of Alpha4EncoderFactory
+    // (Alpha4AntiAliasRleEncoder) does, a run at a time rather than pixel by
+    // pixel. Runs of the extreme values (0 and 15), and long runs of the others,
+    // are written as runs; short runs of the intermediate values are held
+    // back, and written as a literal (if they add up to at least 3 pixels)
+    // when a run that is not held back comes along. The held back runs are
+    // always contiguous, so that they are tracked as a range of the raster:
+    // [pendingStart, pendingEnd), of which [pendingStart, literalEnd) goes in
+    // the literal.
+    private void encodeRle4(byte[] raster, int count, GlyphBuffer buffer) {
+      int pendingStart = 0;
+      int pendingEnd = 0;
+      int literalEnd = 0;
+      int i = 0;
+      while (i < count) {
+        int end = runEnd(raster, i, count);
+        int value = levels[raster[i] & 0xFF];
+        int length = end - i;
+        boolean extreme = (value == 0 || value == 15);
+        if (pendingStart == pendingEnd) {
+          if (extreme || length >= 3) {
+            writeRun4(value, length, buffer);
+          } else {
+            pendingStart = i;
+            pendingEnd = end;
+            literalEnd = i;
+          }
+        } else if (length >= 5 || (extreme && length >= 2)) {
+          writePending4(raster, pendingStart, literalEnd, pendingEnd, buffer);
+          pendingStart = pendingEnd = literalEnd = end;
+          writeRun4(value, length, buffer);
+        } else {
+          pendingEnd = end;
+          if (!extreme && length < 3) {
+            literalEnd = end;
+          }
+        }
+        i = end;
+      }
+      writePending4(raster, pendingStart, literalEnd, pendingEnd, buffer);
+      buffer.flushNibble();
+    }
+
+    // Writes the held back runs: [start, literalEnd) as a literal, and the rest
+    // as runs.
+    private void writePending4(byte[] raster, int start, int literalEnd, int end, GlyphBuffer buffer) {
+      if (literalEnd - start < 3) {
+        // Too short for a literal.
+        literalEnd = start;
+      } else {
+        buffer.writeNibble(8);
+        writeVarInt4(literalEnd - start - 2, false, buffer);
+        for (int i = start; i < literalEnd; ++i) {
+          buffer.writeNibble(levels[raster[i] & 0xFF]);
+        }
+      }
+      for (int i = literalEnd; i < end;) {
+        int runEnd = runEnd(raster, i, end);
+        writeRun4(levels[raster[i] & 0xFF], runEnd - i, buffer);
+        i = runEnd;
+      }
+    }
+
+    private static void writeRun4(int value, int count, GlyphBuffer buffer) {
+      if (count > 35) {
+        writeGenericRun4(value, count, buffer);
+      } else if (value == 0) {
+        // Transparent run: a nibble of up to 7 pixels.
+        for (; count >= 7; count -= 7) {
+          buffer.writeNibble(7);
+        }
+        if (count > 0) {
+          buffer.writeNibble(count);
         }
-        encoder.close();
-      } catch (IOException e) {
+      } else if (value == 15) {
+        // Opaque run: a nibble of 8 + up to 7 pixels.
+        for (; count >= 7; count -= 7) {
+          buffer.writeNibble(15);
+        }
+        if (count > 0) {
+          buffer.writeNibble(count | 8);
+        }
+      } else if (count == 1) {
+        buffer.writeNibble(0);
+        buffer.writeNibble(value);
+      } else if (count == 2) {
+        buffer.writeNibble(0);
+        buffer.writeNibble(0);
+        buffer.writeNibble(value);
+      } else if (count == 3) {
+        buffer.writeNibble(0);
+        buffer.writeNibble(15);
+        buffer.writeNibble(value);
+      } else {
+        writeGenericRun4(value, count, buffer);
+      }
+    }
+
+    private static void writeGenericRun4(int value, int count, GlyphBuffer buffer) {
+      buffer.writeNibble(8);
+      buffer.writeNibble(0);
+      writeVarInt4(count - 4, false, buffer);
+      buffer.writeNibble(value);
+    }
+
+    // Writes the value as 3-bit groups, most significant first, with the 8 bit
+    // set on all but the last.
+    private static void writeVarInt4(int value, boolean more, GlyphBuffer buffer) {
+      if (value >= 8) {
+        writeVarInt4(value / 8, true, buffer);
+        value %= 8;
+      }
+      buffer.writeNibble(more ? value | 8 : value);
+    }
+
+    // Packs the quantized pixels, most significant bits first, with no padding
+    // between rows; only the last byte is padded with zeros. For 4 and 8 bits,
+    // this is the same as the plain encoders of Alpha4EncoderFactory and
+    // Alpha8EncoderFactory, without going through them pixel by pixel.
+    private void encodePacked(byte[] raster, int count, GlyphBuffer buffer) {
+      int bits = alphaBits.bits();
+      byte[] out = buffer.reserve((count * bits + 7) / 8);
+      int pos = buffer.size();
+      int acc = 0;
+      int filled = 0;
+      for (int i = 0; i < count; ++i) {
+        acc = (acc << bits) | levels[raster[i] & 0xFF];
+        filled += bits;
+        if (filled == 8) {
+          out[pos++] = (byte) acc;
+          acc = 0;
+          filled = 0;
+        }
+      }
+      if (filled > 0) {
+        out[pos++] = (byte) (acc << (8 - filled));
+      }
+      buffer.setSize(pos);
+    }
+  }
+
+  // Encoded lengths of glyphs, together with a hash of their encoded data (see
+  // hash()), by alpha resolution, encoding and glyph. A font records them as
+  // its glyphs get imported, so that sizing and deduplicating it needs no
+  // raster. They can also be shared by the encoders of fonts that have glyphs
+  // in common (e.g. the candidates of BudgetOptimizer), so that each glyph
+  // only gets encoded once.
+  static class LengthCache {
+    private final Map<RooDisplayFont.AlphaBits, Map<Glyph, Encoded>> plain = new ConcurrentHashMap<>();
+    private final Map<RooDisplayFont.AlphaBits, Map<Glyph, Encoded>> rle = new ConcurrentHashMap<>();
+
+    // Returns the encoded length and hash of the glyph, encoding it (into the
+    // buffer) if not cached yet.
+    Encoded get(GlyphEncoder encoder, Glyph glyph, GlyphBuffer buffer) {
+      return (encoder.rle ? rle : plain)
+          .computeIfAbsent(encoder.alphaBits, bits -> new ConcurrentHashMap<>())
+          .computeIfAbsent(glyph, g -> {
+            buffer.reset();
+            encoder.encodeGlyph(g, buffer);
+            return new Encoded(buffer.size(), hash(buffer, encoder.rle));
+          });
+    }
+
+    // As get(), but plain lengths, which are trivial to compute, are only taken
+    // from the cache if already there.
+    int encodedLength(GlyphEncoder encoder, Glyph glyph, GlyphBuffer buffer) {
+      if (!encoder.rle) {
+        Map<Glyph, Encoded> lengths = plain.get(encoder.alphaBits);
+        Encoded encoded = lengths == null ? null : lengths.get(glyph);
+        return encoded != null ? encoded.length : encoder.encodedLength(glyph, buffer);
+      }
+      return get(encoder, glyph, buffer).length;
+    }
+  }
+
+  // Length and hash of the encoded data of a glyph.
+  static class Encoded {
+    final int length;
+    final long hash;
+
+    Encoded(int length, long hash) {
+      this.length = length;
+      this.hash = hash;
+    }
+  }
+
+  // Growable buffer for a single encoded glyph, reused across glyphs to avoid
+  // allocating a new one for each.
+  static class GlyphBuffer extends OutputStream {
+    private byte[] data = new byte[256];
+    private int size = 0;
+    // Whether the last byte only has its high half written (see writeNibble()).
+    private boolean halfByte = false;
+
+    @Override
+    public void write(int b) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, 2 * size);
+      }
+      data[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      System.arraycopy(b, off, reserve(len), size, len);
+      size += len;
+    }
+
+    // Makes room for len more bytes, and returns the backing array.
+    byte[] reserve(int len) {
+      if (size + len > data.length) {
+        data = Arrays.copyOf(data, Math.max(2 * data.length, size + len));
+      }
+      return data;
+    }
+
+    void setSize(int size) {
+      this.size = size;
+    }
+
+    // Appends 4 bits: the high half of a new byte, or the low half of the last
+    // one, if it only has its high half.
+    void writeNibble(int nibble) {
+      if (halfByte) {
+        data[size - 1] |= nibble;
+      } else {
+        write(nibble << 4);
+      }
+      halfByte = !halfByte;
+    }
+
+    // Completes the last byte (with its low half zero), if it only has its high
+    // half.
+    void flushNibble() {
+      halfByte = false;
+    }
+
+    void reset() {
+      size = 0;
+      halfByte = false;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] array() {
+      return data;
+    }
+  }
+
+  // Prints the buffer exactly as HexWriter.printBuffer() would (i.e. 16 bytes
+  // per line, if writing hex), without copying it to an array of the exact size first.
+  private static void printBuffer(PayloadWriter writer, GlyphBuffer buffer) throws IOException {
+    byte[] data = buffer.array();
+    for (int i = 0; i < buffer.size(); ++i) {
+      if (i > 0 && i % 16 == 0) {
+        writer.newLine();
+      }
+      writer.printHex8(data[i] & 0xFF);
+    }
+  }
+
+  // Runs the task for indices [0, count), using up to the configured number of
+  // workers. Each worker claims indices until none are left, running them with
+  // its own instance of the task (so that it can hold worker-local state).
+  private void forEachInParallel(int count, Supplier<IntConsumer> taskFactory) {
+    AtomicInteger cursor = new AtomicInteger();
+    Runnable worker = () -> {
+      IntConsumer task = taskFactory.get();
+      int i;
+      while ((i = cursor.getAndIncrement()) < count) {
+        task.accept(i);
+      }
+    };
+    if (workers <= 1 || count <= 1) {
+      worker.run();
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < Math.min(workers, count); ++i) {
+      futures.add(executor.submit(worker));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(
+          "Failed to encode glyphs of " + font.getFont().getPSName(),
+          e.getCause()
+        );
       }
-      return os.toByteArray();
     }
   }
 
   private static class FontMetricWriter {
     private final int fontMetricBytes;
-    private final HexWriter writer;
+    private final PayloadWriter writer;
 
-    public FontMetricWriter(int fontMetricBytes, HexWriter writer) {
+    public FontMetricWriter(int fontMetricBytes, PayloadWriter writer) {
       this.fontMetricBytes = fontMetricBytes;
       this.writer = writer;
     }
@@ -274,11 +1277,29 @@ class FontEncoder {
     }
   }
 
+  private static class ClassWriter {
+    private final int classBytes;
+    private final PayloadWriter writer;
+
+    public ClassWriter(int classBytes, PayloadWriter writer) {
+      this.classBytes = classBytes;
+      this.writer = writer;
+    }
+
+    void print(int cls) throws IOException {
+      if (classBytes == 1) {
+        writer.printHex8(cls);
+      } else {
+        writer.printHex16(cls);
+      }
+    }
+  }
+
   private static class OffsetWriter {
     private final int offsetBytes;
-    private final HexWriter writer;
+    private final PayloadWriter writer;
 
-    public OffsetWriter(int offsetBytes, HexWriter writer) {
+    public OffsetWriter(int offsetBytes, PayloadWriter writer) {
       this.offsetBytes = offsetBytes;
       this.writer = writer;
     }
@@ -1,22 +1,33 @@
 package roo.display;
 
 import java.awt.Font;
+import java.awt.FontFormatException;
 import java.awt.GraphicsEnvironment;
 import java.awt.font.TextAttribute;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import hexwriter.BinaryWriter;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
-import picocli.CommandLine.ExecutionException;
 import picocli.CommandLine.Option;
 
 // The main command-line interface.
@@ -24,8 +35,10 @@ class FontImporter {
 
   public static void main(String[] args) throws Throwable {
     try {
-      CommandLine.call(new Main(), args);
-    } catch (ExecutionException e) {
+      Main main = new Main();
+      main.args = args;
+      CommandLine.call(main, args);
+    } catch (CommandLine.ExecutionException e) {
       throw e.getCause();
     }
   }
@@ -36,7 +49,7 @@ class FontImporter {
     @Option(names = { "--output-dir" }, description = "where to place resulting font files. Defaults to cwd.")
     File outputDir;
 
-    @Option(names = "-font", description = "PostScript name of the font to generate.")
+    @Option(names = "-font", description = "PostScript name of the font to generate. Optional with -font-file, where it selects the font within a collection, and defaults to the first one.")
     private String inputFontName;
 
     @Option(names = "-sizes", description = "Font size(s) to generate.")
@@ -48,66 +61,675 @@ class FontImporter {
     @Option(names = "-charset", defaultValue = "21-17F,3A9,3BC,3C0,2013-2014,20AC,20BF,2018-2022,2026,2030,2039-203A,2044,2122,2152,2202,2206,221A,221E,2248,2260,2264-2265,FB01-FB02", description = "Comma-separated list of character ranges to include (e.g., U+0020..U+007F", split = ",")
     private List<String> charsetRanges;
 
+    @Option(names = "-threads", description = "Number of worker threads used to rasterize glyphs. Defaults to the number of available processors.")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = "-jobs", description = "Maximum number of font sizes generated concurrently. Defaults to the number of available processors. Also capped by the available heap.")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = "-kerning", defaultValue = "probe", description = "Source of kerning pairs: 'probe' (measures the layout of glyph pairs at every size), 'scaled' (measures it once, at the largest size, and scales it to other sizes), or 'tables' (reads the GPOS/kern tables of -font-file, and scales them to every size; falls back to probing if the font has none).")
+    private String kerningSource;
+
+    @Option(names = "-font-file", description = "Path to the font file (.ttf/.otf/.ttc) to load the font from, instead of looking it up among the fonts installed in the system. Also used to read its kerning tables, and to identify it in the glyph cache.")
+    private File fontFile;
+
+    @Option(names = "-verify-kerning", description = "With -kerning other than 'probe', also probe the kerning at every size, and report the differences.")
+    private boolean verifyKerning;
+
+    @Option(names = { "--cache-dir" }, description = "Where to cache rasterized glyphs between runs. Defaults to ~/.cache/roo_display_importer. The cache is only used with -font-file, which identifies the font content.")
+    private File cacheDir =
+        new File(System.getProperty("user.home"), ".cache/roo_display_importer");
+
+    @Option(names = "-cache-size", description = "Maximum size of the glyph cache, in MB; least recently used fonts are evicted first. Defaults to 256.")
+    private int cacheSizeMb = 256;
+
+    @Option(names = "-no-cache", description = "Do not use the glyph cache.")
+    private boolean noCache;
+
+    @Option(names = "-rebuild-cache", description = "Rasterize all glyphs, replacing the cached ones.")
+    private boolean rebuildCache;
+
+    @Option(names = "-alpha-bits", description = "Bits per pixel of the glyph data: 1 (no antialiasing), 2, 4, or 8. Defaults to 4. RLE is only used for 4 and 8 bits.")
+    private int alphaBitsPerPixel = 4;
+
+    @Option(names = "-compression", defaultValue = "rle", description = "Compression of the glyph data: 'rle', 'plain', or 'adaptive' (each glyph encoded whichever way is smaller; requires a decoder supporting font format 0x0102).")
+    private String compressionName;
+
+    @Option(names = "-dedup-glyphs", description = "Store the data of identically encoded glyphs (e.g. Latin, Greek and Cyrillic lookalikes) only once.")
+    private boolean dedupGlyphs;
+
+    @Option(names = "-kerning-format", defaultValue = "flat", description = "Format of the kerning table: 'flat' (a list of pairs), or 'classes' (glyphs with identical kerning grouped into classes, with a class matrix; requires a decoder supporting font format 0x0103).")
+    private String kerningFormatName;
+
+    @Option(names = "-rdf", description = "Also write each font as a binary .rdf file (the same font data, with a small header), to be stored on a file system, and mapped or streamed by the device.")
+    private boolean rdf;
+
+    @Option(names = "-verify-rdf", description = "Write the .rdf files (as -rdf), then map each one, and check it field by field against the font data in the C++ sources.")
+    private boolean verifyRdf;
+
+    @Option(names = "-reproducible", description = "Reproducible output: no timestamp in the generated sources, and files whose content has not changed are left untouched (others are replaced atomically), so that they don't trigger rebuilds.")
+    private boolean reproducible;
+
+    @Option(names = "-lookup-index", description = "Add a lookup index: ranges of consecutive code points, and the start of the kerning pairs of each glyph, for faster lookups on the device (requires a decoder supporting font format 0x0104).")
+    private boolean lookupIndex;
+
+    @Option(names = "-manifest", description = "File listing the fonts to generate in a single run, one per line. Each line holds the options for that font (e.g. -font=NotoSans-Regular -sizes=8,12 --output-dir=out), separated by whitespace; options given on the command line apply to all lines. Blank lines and lines starting with '#' are ignored.")
+    private File manifest;
+
+    @Option(names = "-report", description = "Write a JSON report of the run: the time taken by each phase (font lookup, kerning candidates, and for each size glyph import, kerning, encoding, and output), and the glyph and kerning pair counts, raw and encoded glyph data sizes, and compression ratio of each size. The phases and sizes are also recorded as JFR events, if a flight recording is running.")
+    private File reportFile;
+
+    @Option(names = "-dry-run", description = "Import, kern and encode the fonts, but write no files; report the exact size of each font instead, broken down into header, glyph metrics, kerning table, lookup index and glyph data, along with its most expensive glyphs and Unicode blocks.")
+    private boolean dryRun;
+
+    @Option(names = "-dry-run-top", description = "Number of glyphs, and of Unicode blocks, listed by -dry-run. Defaults to 10.")
+    private int dryRunTop = 10;
+
+    @Option(names = "-min-kern", description = "Drop the kerning pairs that adjust the spacing by less than this many pixels. Defaults to 1 (all pairs kept).")
+    private int minKern = 1;
+
+    @Option(names = "-budget", description = "Byte budget for the font data of each size. Generates the best quality configuration that fits: the alpha depth (up to -alpha-bits), compression (rle or plain, or adaptive with -compression=adaptive), -min-kern, and -optional-blocks dropped, and reports it. Fails the sizes that don't fit in any configuration.")
+    private long budget;
+
+    @Option(names = "-optional-blocks", description = "Unicode blocks (e.g. GREEK, CYRILLIC, LATIN_EXTENDED_A) that -budget may leave out, if nothing else fits; the first listed goes first.", split = ",")
+    private List<String> optionalBlockNames = new ArrayList<>();
+
+    // The command-line arguments; the defaults of the manifest entries.
+    private String[] args = new String[0];
+
+    private RooDisplayFont.AlphaBits alphaBits;
+    private FontEncoder.Compression compression;
+    private FontEncoder.KerningFormat kerningFormat;
+    private List<Character.UnicodeBlock> optionalBlocks;
+    // With -budget, the highest alpha depth to consider (alphaBits is then 8).
+    private RooDisplayFont.AlphaBits budgetAlphaBits;
+    private GlyphCache glyphCache;
+    // Output files written and left unchanged (with -reproducible).
+    private final AtomicInteger filesWritten = new AtomicInteger();
+    private final AtomicInteger filesUnchanged = new AtomicInteger();
+    // Timings and metrics of the run; shared by the manifest entries.
+    private RunReport report = new RunReport();
+    private RunReport.FontEntry reportFont;
+
+    private static Map<String, Font> systemFonts;
+
     @Override
     public Void call() throws Exception {
-      GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-      Font[] fonts = ge.getAllFonts();
-      Map<String, Font> map = new TreeMap<>();
-
-      for (int i = 0; i < fonts.length; i++) {
-        map.put(fonts[i].getPSName(), fonts[i]);
+      if (manifest != null) {
+        runManifest();
+        return null;
       }
       if (listFonts) {
-        for (String name : map.keySet())
+        for (String name : getSystemFonts().keySet())
           System.out.println(name);
         return null;
       }
 
-      if (inputFontName == null || fontSizes == null) {
-        throw new IllegalArgumentException("-font and -sizes are required; see -help.");
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+      ExecutorService jobExecutor = Executors.newFixedThreadPool(Math.max(1, jobs));
+      try {
+        run(executor, jobExecutor);
+      } finally {
+        jobExecutor.shutdown();
+        executor.shutdown();
+        writeReport();
       }
+      return null;
+    }
+
+    // Generates all the requested sizes of the font, using the specified pools
+    // for rasterization and for the size jobs. Returns the total number of bytes
+    // generated, or -1 if the font has not been found.
+    private long run(ExecutorService executor, ExecutorService jobExecutor) throws Exception {
+      if ((inputFontName == null && fontFile == null) || fontSizes == null) {
+        throw new IllegalArgumentException(
+            "-font (or -font-file) and -sizes are required; see -help.");
+      }
+      long lookupStart = System.nanoTime();
+      Font instance;
+      if (fontFile != null) {
+        instance = loadFont(fontFile, inputFontName);
+        if (inputFontName == null && instance != null) {
+          inputFontName = instance.getPSName();
+        }
+      } else {
+        instance = getSystemFonts().get(inputFontName);
+      }
+      // Reported under its PostScript name, which is only known once loaded.
+      reportFont = report.addFont(inputFontName);
+      reportFont.addPhase("fontLookup", System.nanoTime() - lookupStart);
 
       Map<TextAttribute, Object> attributes = new HashMap<>();
       attributes.put(TextAttribute.KERNING, TextAttribute.KERNING_ON);
       boolean smooth = true;
       char[] charset = parseCharset(charsetRanges);
       System.out.println("Generating " + inputFontName);
-      Font instance = map.get(inputFontName);
       if (instance == null) {
         System.out.println("FAILED: " + inputFontName + " not found.");
-        return null;
+        return -1;
+      }
+
+      alphaBits = Arrays.stream(RooDisplayFont.AlphaBits.values())
+          .filter(b -> b.bits() == alphaBitsPerPixel).findFirst()
+          .orElseThrow(() ->
+              new IllegalArgumentException("Unsupported -alpha-bits: " + alphaBitsPerPixel));
+      compression = FontEncoder.Compression.valueOf(compressionName.toUpperCase());
+      kerningFormat = FontEncoder.KerningFormat.valueOf(kerningFormatName.toUpperCase());
+      optionalBlocks = new ArrayList<>();
+      for (String name : optionalBlockNames) {
+        try {
+          optionalBlocks.add(Character.UnicodeBlock.forName(name.trim()));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Unknown Unicode block: " + name);
+        }
+      }
+      if (!Arrays.asList("probe", "scaled", "tables").contains(kerningSource)) {
+        throw new IllegalArgumentException("Unknown -kerning source: " + kerningSource);
+      }
+      if (kerningSource.equals("tables") && fontFile == null) {
+        throw new IllegalArgumentException("-kerning=tables requires -font-file.");
+      }
+
+      // A size requested twice is generated once; its jobs would write the same files.
+      int[] sizes = Arrays.asList(fontSizes.split(",")).stream().map(String::trim)
+          .mapToInt(Integer::parseInt).distinct().toArray();
+
+      if (budget > 0) {
+        // The lower alpha depths are derived from the 8-bit glyphs.
+        budgetAlphaBits = alphaBits;
+        alphaBits = RooDisplayFont.AlphaBits.EIGHT;
+      }
+
+      if (fontFile != null && !noCache) {
+        glyphCache = new GlyphCache(cacheDir, cacheSizeMb * 1024L * 1024L, fontFile, rebuildCache);
+      }
+
+      return generate(instance, attributes, smooth, charset, sizes, executor, jobExecutor);
+    }
+
+    // Generates every entry of the manifest, sharing the system font map (if
+    // needed) and the worker pools, and prints a summary at the end. Entries
+    // are parsed up front, so that mistakes are reported before any work is
+    // done.
+    private void runManifest() throws Exception {
+      List<String> lines = Files.readAllLines(manifest.toPath());
+      List<Main> entries = new ArrayList<>();
+      List<String> defaults = new ArrayList<>();
+      for (int i = 0; i < args.length; ++i) {
+        if (args[i].equals("-manifest")) {
+          ++i;
+        } else if (!args[i].startsWith("-manifest=")) {
+          defaults.add(args[i]);
+        }
+      }
+      for (int i = 0; i < lines.size(); ++i) {
+        String line = lines.get(i).trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        List<String> entryArgs = new ArrayList<>(defaults);
+        entryArgs.addAll(Arrays.asList(line.split("\\s+")));
+        Main entry = new Main();
+        entry.report = report;
+        try {
+          new CommandLine(entry).setOverwrittenOptionsAllowed(true)
+              .parse(entryArgs.toArray(new String[0]));
+        } catch (CommandLine.ParameterException e) {
+          throw new IllegalArgumentException(manifest + ":" + (i + 1) + ": " + e.getMessage(), e);
+        }
+        entries.add(entry);
+      }
+
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+      ExecutorService jobExecutor = Executors.newFixedThreadPool(Math.max(1, jobs));
+      List<String> summary = new ArrayList<>();
+      long totalBytes = 0;
+      long totalStart = System.nanoTime();
+      int failures = 0;
+      try {
+        for (Main entry : entries) {
+          long start = System.nanoTime();
+          String status;
+          try {
+            long bytes = entry.run(executor, jobExecutor);
+            if (bytes < 0) {
+              status = "FAILED: not found";
+              ++failures;
+            } else {
+              status = bytes + " bytes";
+              totalBytes += bytes;
+            }
+          } catch (Exception e) {
+            status = "FAILED: " + e.getMessage();
+            ++failures;
+          }
+          summary.add(String.format("  %-32s %8.1f s  %s", entry.inputFontName,
+              (System.nanoTime() - start) / 1e9, status));
+        }
+      } finally {
+        jobExecutor.shutdown();
+        executor.shutdown();
+        writeReport();
+      }
+      System.out.println("Summary:");
+      for (String line : summary) {
+        System.out.println(line);
+      }
+      System.out.println(String.format("  %-32s %8.1f s  %d bytes",
+          "Total (" + entries.size() + " fonts)", (System.nanoTime() - totalStart) / 1e9,
+          totalBytes));
+      if (entries.stream().anyMatch(e -> e.reproducible && !e.dryRun)) {
+        int written = entries.stream().mapToInt(e -> e.filesWritten.get()).sum();
+        int unchanged = entries.stream().mapToInt(e -> e.filesUnchanged.get()).sum();
+        System.out.println("  Files: " + written + " written, " + unchanged + " unchanged.");
+      }
+      if (failures > 0) {
+        throw new IllegalStateException(
+            "Failed to generate " + failures + " of " + entries.size() + " fonts.");
+      }
+    }
+
+    // Writes the report, if requested with -report.
+    private void writeReport() throws IOException {
+      if (reportFile != null) {
+        report.write(reportFile);
+        System.out.println("Report written to " + reportFile + ".");
       }
+    }
+
+    // Returns all the fonts available in the system, by PostScript name.
+    // Enumerating them is slow with large font collections, so it is only done
+    // on first use, and shared by all the manifest entries.
+    private static synchronized Map<String, Font> getSystemFonts() {
+      if (systemFonts == null) {
+        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        Font[] fonts = ge.getAllFonts();
+        Map<String, Font> map = new TreeMap<>();
+        for (int i = 0; i < fonts.length; i++) {
+          map.put(fonts[i].getPSName(), fonts[i]);
+        }
+        systemFonts = map;
+      }
+      return systemFonts;
+    }
 
-      int[] sizes = Arrays.asList(fontSizes.split(",")).stream().map(String::trim).mapToInt(Integer::parseInt)
-          .toArray();
+    // Loads the font from the file. For collections, returns the font with the
+    // specified PostScript name, or the first one if the name is null. Returns
+    // null if there is no font of that name.
+    private static Font loadFont(File file, String name) throws IOException {
+      Font[] fonts;
+      try {
+        fonts = Font.createFonts(file);
+      } catch (FontFormatException e) {
+        throw new IOException("Cannot load font from " + file + ": " + e.getMessage(), e);
+      }
+      for (Font font : fonts) {
+        if (name == null || font.getPSName().equals(name)) {
+          return font;
+        }
+      }
+      return null;
+    }
 
-      List<RooDisplayFont.CodePointPair> candidates = null;
-      if (sizes.length > 1) {
+    // Returns the total number of bytes generated.
+    private long generate(Font instance, Map<TextAttribute, Object> attributes, boolean smooth,
+        char[] charset, int[] sizes, ExecutorService executor, ExecutorService jobExecutor)
+        throws Exception {
+      int largestSize = Arrays.stream(sizes).max().getAsInt();
+      RooDisplayFont.ScalableKerning scalableKerning = null;
+      if (kerningSource.equals("tables")) {
+        OpenTypeKerning kerningTables = reportFont.time("kerningTables",
+            () -> OpenTypeKerning.read(fontFile, inputFontName));
+        if (kerningTables.isEmpty()) {
+          System.out.println("No kerning tables in " + fontFile + "; falling back to probing.");
+        } else {
+          scalableKerning = RooDisplayFont.ScalableKerning.fromTables(kerningTables, charset);
+        }
+      } else if (kerningSource.equals("scaled")) {
+        // Measure the kerning once, at the largest size, to get the most precise
+        // values, and scale it to all the sizes.
+        System.out.print("Measuring kerning at size " + largestSize + "... ");
+        Font font = instance.deriveFont(attributes).deriveFont(Font.PLAIN, largestSize);
+        StringBuilder stats = new StringBuilder();
+        scalableKerning = reportFont.time("kerningMeasure",
+            () -> importFont(font, smooth, charset, executor, stats).measureScalableKerning());
+        System.out.println("found " + scalableKerning.size() + " pairs.");
+        System.out.print(stats);
+      }
+      RooDisplayFont.CodePointPairs candidates = null;
+      if (sizes.length > 1 && scalableKerning == null) {
         // Narrow down candidate kerning pairs by looking at all possible pairs for the
         // largest possible size.
         System.out.print("Identify kerning pair candidates... ");
-        Font font = instance.deriveFont(attributes).deriveFont(Font.PLAIN, sizes[sizes.length - 1]);
-        RooDisplayFont f = new RooDisplayFont(font, smooth, charset);
-        System.out.println(f.getGlyphCount());
-        f.generateKerningPairs(null);
-        candidates = new ArrayList<>();
-        for (RooDisplayFont.KerningPair k : f.getKerningPairs()) {
-          candidates.add(k.codePoints);
-        }
+        Font font = instance.deriveFont(attributes).deriveFont(Font.PLAIN, largestSize);
+        StringBuilder stats = new StringBuilder();
+        candidates = reportFont.time("kerningCandidates", () -> {
+          RooDisplayFont f = importFont(font, smooth, charset, executor, stats);
+          System.out.println(f.getGlyphCount());
+          f.generateKerningPairs(null);
+          return f.getKerningPairs().getCodePointPairs();
+        });
         System.out.println("found " + candidates.size() + " candidate pairs.");
+        System.out.print(stats);
       }
 
-      for (int fontSize : sizes) {
-        Font font = instance.deriveFont(attributes).deriveFont(Font.PLAIN, fontSize);
-        RooDisplayFont f = new RooDisplayFont(font, smooth, charset);
-        System.out.print("Generating size " + fontSize + " ... ");
-        f.generateKerningPairs(candidates);
-        FontWriter writer = new FontWriter(outputDir, true);
-        FontEncoder encoder = new FontEncoder(f);
-        int size = writer.writeFont(encoder, inputFontName, fontSize);
-        System.out.print("Done (" + size + " bytes.)\n");
+      // Each size is an independent job. Jobs are submitted largest first, so that
+      // the most expensive ones don't end up last on the critical path. Each job
+      // reserves an estimate of its peak memory (in KB) before it starts, so that
+      // large sizes running side by side don't exhaust the heap.
+      final RooDisplayFont.CodePointPairs jobCandidates = candidates;
+      final RooDisplayFont.ScalableKerning jobScalableKerning = scalableKerning;
+      int memoryBudget =
+          (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / 1024);
+      Semaphore memory = new Semaphore(memoryBudget);
+      Integer[] order = new Integer[sizes.length];
+      for (int i = 0; i < sizes.length; ++i) {
+        order[i] = i;
       }
-      return null;
+      Arrays.sort(order, (a, b) -> Integer.compare(sizes[b], sizes[a]));
+      List<Future<Integer>> results = new ArrayList<>(Collections.nCopies(sizes.length, null));
+      List<StringBuilder> notes = new ArrayList<>();
+      List<RunReport.SizeEntry> reportSizes = new ArrayList<>();
+      for (int i = 0; i < sizes.length; ++i) {
+        notes.add(new StringBuilder());
+        reportSizes.add(reportFont.addSize(sizes[i]));
+      }
+      for (int i : order) {
+        int fontSize = sizes[i];
+        int reservation = Math.min(memoryBudget, estimateJobMemoryKb(fontSize, charset.length));
+        results.set(i, jobExecutor.submit(() -> {
+          memory.acquire(reservation);
+          try {
+            return generateSize(instance, attributes, smooth, charset, fontSize, jobCandidates,
+                jobScalableKerning, executor, notes.get(i), reportSizes.get(i));
+          } finally {
+            memory.release(reservation);
+          }
+        }));
+      }
+
+      // Report in the order in which the sizes were requested.
+      long total = 0;
+      int failures = 0;
+      for (int i = 0; i < sizes.length; ++i) {
+        System.out.print("Generating size " + sizes[i] + " ... ");
+        try {
+          int size = results.get(i).get();
+          total += size;
+          System.out.print("Done (" + size + " bytes.)\n");
+          System.out.print(notes.get(i));
+        } catch (ExecutionException e) {
+          System.out.print("FAILED: " + e.getCause() + "\n");
+          ++failures;
+        }
+      }
+      if (reproducible && !dryRun) {
+        System.out.println(
+            "Files: " + filesWritten + " written, " + filesUnchanged + " unchanged.");
+      }
+      if (failures > 0) {
+        throw new IllegalStateException("Failed to generate " + failures + " of " + sizes.length
+            + " sizes of " + inputFontName);
+      }
+      return total;
+    }
+
+    private int generateSize(Font instance, Map<TextAttribute, Object> attributes, boolean smooth,
+        char[] charset, int fontSize, RooDisplayFont.CodePointPairs candidates,
+        RooDisplayFont.ScalableKerning scalableKerning, ExecutorService executor,
+        StringBuilder notes, RunReport.SizeEntry reportSize) throws IOException {
+      Font font = instance.deriveFont(attributes).deriveFont(Font.PLAIN, fontSize);
+      RooDisplayFont imported = reportSize.time("glyphImport",
+          () -> importFont(font, smooth, charset, executor, notes));
+      reportSize.time("kerning", () -> {
+        if (scalableKerning == null) {
+          imported.generateKerningPairs(candidates);
+        } else {
+          RooDisplayFont.KerningPairs probed = null;
+          if (verifyKerning) {
+            imported.generateKerningPairs(null);
+            probed = imported.getKerningPairs();
+          }
+          imported.applyKerning(scalableKerning);
+          if (probed != null) {
+            compareKerning(imported.getKerningPairs(), probed, notes);
+          }
+        }
+        if (minKern > 1) {
+          imported.dropKerningPairs(minKern);
+        }
+      });
+      RooDisplayFont f = imported;
+      FontEncoder.Compression sizeCompression = compression;
+      if (budget > 0) {
+        List<FontEncoder.Compression> compressions = new ArrayList<>();
+        if (compression == FontEncoder.Compression.ADAPTIVE) {
+          compressions.add(FontEncoder.Compression.ADAPTIVE);
+        }
+        compressions.add(FontEncoder.Compression.RLE);
+        compressions.add(FontEncoder.Compression.PLAIN);
+        BudgetOptimizer optimizer =
+            new BudgetOptimizer(f, compressions, optionalBlocks, executor, threads);
+        optimizer.setDeduplicateGlyphs(dedupGlyphs);
+        optimizer.setKerningFormat(kerningFormat);
+        optimizer.setLookupIndex(lookupIndex);
+        optimizer.setMaxAlphaBits(budgetAlphaBits);
+        BudgetOptimizer.Candidate best =
+            reportSize.time("budget", () -> optimizer.optimize(budget));
+        if (best == null) {
+          throw new IllegalStateException("Does not fit in " + budget
+              + " bytes; the smallest configuration takes " + optimizer.getSmallest().bytes + " ("
+              + optimizer.getSmallest().describe() + ")");
+        }
+        f = best.font;
+        sizeCompression = best.compression;
+        notes.append("  Budget: " + best.bytes + " of " + budget + " bytes, with " + best.describe()
+            + " (" + optimizer.getCandidatesSized() + " configurations sized).\n");
+      }
+      FontEncoder encoder = new FontEncoder(f, executor, threads);
+      encoder.setTimestamped(!reproducible);
+      encoder.setDeduplicateGlyphs(dedupGlyphs);
+      encoder.setKerningFormat(kerningFormat);
+      encoder.setLookupIndex(lookupIndex);
+      // Nothing needs the rasters once written; letting them go as the glyph
+      // data is written lowers the memory held by concurrent jobs.
+      encoder.setReleaseRasters(true);
+      int size;
+      if (dryRun) {
+        // The font data goes nowhere; the encoder keeps track of its size.
+        encoder.writeDefinition(new BinaryWriter(OutputStream.nullOutputStream()), "font",
+            sizeCompression);
+        size = encoder.getTotalBytes();
+        reportSize.addPhase("encode", encoder.getEncodeNanos());
+        reportSize.addPhase("emit", encoder.getEmitNanos());
+        reportSize.setMetrics(f.getGlyphCount(), f.getKerningPairs().size(), getRasterBytes(f),
+            encoder.getGlyphDataBytes(), size);
+        describeCosts(f, encoder, notes);
+      } else {
+        FontWriter writer = new FontWriter(outputDir, sizeCompression);
+        writer.setRdf(rdf || verifyRdf);
+        writer.setReproducible(reproducible);
+        writer.writeFont(encoder, inputFontName, fontSize);
+        // As with -dry-run; the count of the payload writer leaves out the
+        // 16-bit and 24-bit fields.
+        size = encoder.getTotalBytes();
+        reportSize.addPhase("encode", encoder.getEncodeNanos());
+        reportSize.addPhase("emit", encoder.getEmitNanos());
+        reportSize.setMetrics(f.getGlyphCount(), f.getKerningPairs().size(), getRasterBytes(f),
+            encoder.getGlyphDataBytes(), size);
+        filesWritten.addAndGet(writer.getWrittenFiles().size());
+        filesUnchanged.addAndGet(writer.getUnchangedFiles().size());
+        if (reproducible) {
+          notes.append("  Files: " + describeFiles(writer.getWrittenFiles()) + " written, "
+              + describeFiles(writer.getUnchangedFiles()) + " unchanged.\n");
+        }
+        if (writer.getRdfFile() != null) {
+          notes.append("  Binary font: " + writer.getRdfFile().length() + " bytes.\n");
+        }
+        if (verifyRdf) {
+          int fields = reportSize.time("verifyRdf",
+              () -> new RdfReader(writer.getRdfFile()).verify(writer.getCppFile()));
+          notes.append("  Binary font verified: " + fields + " fields match the C++ source.\n");
+        }
+      }
+      if (lookupIndex) {
+        notes.append("  Lookup index: " + encoder.getLookupRanges() + " code point ranges, "
+            + encoder.getLookupIndexBytes() + " bytes.\n");
+      }
+      if (kerningFormat == FontEncoder.KerningFormat.CLASSES) {
+        notes.append("  Class kerning: " + encoder.getKerningBytes() + " bytes; saves "
+            + (encoder.getFlatKerningBytes() - encoder.getKerningBytes()) + " bytes vs flat.\n");
+      }
+      if (dedupGlyphs) {
+        notes.append("  Glyph deduplication: " + encoder.getDuplicateGlyphs()
+            + " glyphs share data; saves " + encoder.getDuplicateGlyphBytes() + " bytes.\n");
+      }
+      if (sizeCompression == FontEncoder.Compression.ADAPTIVE) {
+        // Before deduplication, so that the savings are not counted twice.
+        int glyphDataBytes = encoder.getGlyphDataBytes() + encoder.getDuplicateGlyphBytes();
+        notes.append("  Adaptive compression: " + glyphDataBytes + " bytes of glyph data ("
+            + encoder.getRleGlyphs() + " of " + f.getGlyphCount() + " glyphs RLE); saves "
+            + (encoder.getRleGlyphDataBytes() - glyphDataBytes) + " bytes vs all RLE, "
+            + (encoder.getPlainGlyphDataBytes() - glyphDataBytes) + " vs all plain.\n");
+      }
+      return size;
+    }
+
+    // Describes where the bytes of the font data go: its sections, and the
+    // glyphs and Unicode blocks that cost the most.
+    private void describeCosts(RooDisplayFont f, FontEncoder encoder, StringBuilder notes) {
+      notes.append("  Font data: " + encoder.getTotalBytes() + " bytes: header "
+          + encoder.getHeaderBytes() + ", glyph metrics " + encoder.getMetricsBytes() + ", kerning "
+          + encoder.getKerningTableBytes() + ", lookup index " + encoder.getLookupIndexBytes()
+          + ", glyph data " + encoder.getGlyphDataBytes() + ".\n");
+      List<RooDisplayFont.Glyph> glyphs = f.getGlyphs();
+      int[] costs = encoder.getGlyphCosts();
+      Integer[] order = new Integer[glyphs.size()];
+      Map<Character.UnicodeBlock, int[]> blocks = new HashMap<>();
+      for (int i = 0; i < glyphs.size(); ++i) {
+        order[i] = i;
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(glyphs.get(i).getCodePoint());
+        int[] blockCost = blocks.computeIfAbsent(block, b -> new int[2]);
+        ++blockCost[0];
+        blockCost[1] += costs[i];
+      }
+      Arrays.sort(order, (a, b) -> Integer.compare(costs[b], costs[a]));
+      notes.append("  Most expensive glyphs:\n");
+      for (int i = 0; i < Math.min(dryRunTop, order.length); ++i) {
+        int codePoint = glyphs.get(order[i]).getCodePoint();
+        notes.append(String.format("    \"%c\" (U+%04X): %d bytes\n", codePoint, codePoint,
+            costs[order[i]]));
+      }
+      List<Map.Entry<Character.UnicodeBlock, int[]>> sortedBlocks =
+          new ArrayList<>(blocks.entrySet());
+      sortedBlocks.sort((a, b) -> Integer.compare(b.getValue()[1], a.getValue()[1]));
+      notes.append("  Most expensive Unicode blocks:\n");
+      for (int i = 0; i < Math.min(dryRunTop, sortedBlocks.size()); ++i) {
+        Map.Entry<Character.UnicodeBlock, int[]> block = sortedBlocks.get(i);
+        notes.append(String.format("    %s: %d glyphs, %d bytes\n", block.getKey(),
+            block.getValue()[0], block.getValue()[1]));
+      }
+    }
+
+    // Size of the glyph rasters as imported, at one byte per pixel.
+    private static long getRasterBytes(RooDisplayFont f) {
+      long bytes = 0;
+      for (RooDisplayFont.Glyph glyph : f.getGlyphs()) {
+        bytes += (long) glyph.getBoundingBox().getWidth() * glyph.getBoundingBox().getHeight();
+      }
+      return bytes;
+    }
+
+    private static String describeFiles(List<File> files) {
+      if (files.isEmpty()) {
+        return "none";
+      }
+      StringBuilder result = new StringBuilder();
+      for (File file : files) {
+        result.append(result.length() == 0 ? "" : " ").append(file.getName());
+      }
+      return result.toString();
+    }
+
+    // Rasterizes the glyphs of the font, taking them from the glyph cache when
+    // enabled, and saving the newly rasterized ones back. Unless the rasters
+    // are needed in memory (by the budget optimizer, which trims them to other
+    // alpha resolutions), they are only read back as the glyphs get written.
+    private RooDisplayFont importFont(Font font, boolean smooth, char[] charset,
+        ExecutorService executor, StringBuilder notes) throws IOException {
+      boolean storeRasters = budget == 0;
+      if (glyphCache == null) {
+        return new RooDisplayFont(font, smooth, charset, alphaBits, executor, threads, null,
+            storeRasters);
+      }
+      GlyphCache.Sheet sheet = glyphCache.open(font, alphaBits);
+      RooDisplayFont f = new RooDisplayFont(font, smooth, charset, alphaBits, executor, threads,
+          sheet, storeRasters);
+      sheet.save();
+      notes.append("  Glyph cache: " + sheet.getHits() + " cached, " + sheet.getMisses()
+          + " rasterized.\n");
+      return f;
+    }
+
+    // Describes how the scaled kerning (measured once, or read from the tables)
+    // differs from the one probed at the given size.
+    private void compareKerning(RooDisplayFont.KerningPairs scaled,
+        RooDisplayFont.KerningPairs probed, StringBuilder notes) {
+      probed.sort();
+      boolean[] matched = new boolean[probed.size()];
+      int same = 0;
+      int different = 0;
+      int onlyScaled = 0;
+      List<String> examples = new ArrayList<>();
+      for (int i = 0; i < scaled.size(); ++i) {
+        int left = scaled.getLeft(i);
+        int right = scaled.getRight(i);
+        int idx = probed.indexOf(left, right);
+        Integer kern = null;
+        if (idx >= 0) {
+          matched[idx] = true;
+          kern = probed.getKern(idx);
+        }
+        if (kern != null && kern == scaled.getKern(i)) {
+          ++same;
+          continue;
+        }
+        if (kern == null) {
+          ++onlyScaled;
+        } else {
+          ++different;
+        }
+        if (examples.size() < 5) {
+          examples.add(String.format("U+%04X U+%04X: %d vs %s", left, right, scaled.getKern(i),
+              kern == null ? "none" : kern.toString()));
+        }
+      }
+      int onlyProbed = 0;
+      for (boolean m : matched) {
+        if (!m) {
+          ++onlyProbed;
+        }
+      }
+      notes.append("  Kerning (" + kerningSource + ") vs probing: " + same + " pairs agree, "
+          + different + " differ, " + onlyScaled + " only " + kerningSource + ", " + onlyProbed
+          + " only probed.\n");
+      for (String example : examples) {
+        notes.append("    " + example + "\n");
+      }
+    }
+
+    // Rough upper bound of the memory needed to generate the given size: the
+    // rasterization canvases (5*size squared, 8-bit gray, one per worker), plus
+    // the glyph rasters being encoded (a window of 16 per worker), plus a few
+    // hundred bytes per glyph (metrics and encoded lengths). The other rasters
+    // are kept out of memory (see importFont()), except with a budget, where
+    // they are all held until the glyph data gets written. Encoded glyphs are
+    // streamed to the output.
+    private int estimateJobMemoryKb(int fontSize, int glyphCount) {
+      long canvas = 25L * fontSize * fontSize * Math.max(1, threads);
+      long window = 16L * fontSize * fontSize * Math.max(1, threads);
+      long rasters = budget > 0 ? 1L * glyphCount * fontSize * fontSize : 256L * glyphCount;
+      return (int) Math.min(Integer.MAX_VALUE, (canvas + window + rasters) / 1024 + 1);
     }
   }
 
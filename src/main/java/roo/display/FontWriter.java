@@ -6,15 +6,80 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-// Writes the encoded font to the output files.
+import hexwriter.PayloadWriter;
+
+// Writes the encoded font to the output files: C++ sources (using
+// HexFileWriter for the font data), and optionally a binary .rdf file with the
+// same font data (see RdfWriter).
+//
+// In the reproducible mode, each file is written to a temporary file first,
+// which only replaces the existing file (atomically) if the content differs.
+// Unchanged files are left alone, so that they don't trigger rebuilds.
 class FontWriter {
   private final File libDir;
-  private final boolean rle;
+  private final FontEncoder.Compression compression;
+  private boolean rdf;
+  private File cppFile;
+  private File rdfFile;
+  private boolean reproducible;
+  private long dataBytes;
+  private final List<File> written = new ArrayList<>();
+  private final List<File> unchanged = new ArrayList<>();
 
   FontWriter(File libDir, boolean rle) {
+    this(libDir, rle ? FontEncoder.Compression.RLE : FontEncoder.Compression.PLAIN);
+  }
+
+  FontWriter(File libDir, FontEncoder.Compression compression) {
     this.libDir = libDir;
-    this.rle = rle;
+    this.compression = compression;
+  }
+
+  // Enables writing the .rdf file alongside the C++ sources.
+  public void setRdf(boolean rdf) {
+    this.rdf = rdf;
+  }
+
+  // Enables the reproducible mode (see above). The encoder should not be
+  // timestamped.
+  public void setReproducible(boolean reproducible) {
+    this.reproducible = reproducible;
+  }
+
+  // The files (re)written by the last writeFont().
+  public List<File> getWrittenFiles() {
+    return written;
+  }
+
+  // The files left unchanged by the last writeFont(), in the reproducible mode.
+  public List<File> getUnchangedFiles() {
+    return unchanged;
+  }
+
+  // Exact size of the font data written by the last writeFont().
+  public long getDataBytes() {
+    return dataBytes;
+  }
+
+  // The C++ source written by the last writeFont().
+  public File getCppFile() {
+    return cppFile;
+  }
+
+  // The .rdf file written by the last writeFont(), or null if none.
+  public File getRdfFile() {
+    return rdfFile;
   }
 
   public int writeFont(FontEncoder encoder, String fontName, int fontSize) throws IOException {
@@ -30,9 +95,45 @@ class FontWriter {
     familyDir.mkdir();
     File outputHeaderFile = new File(familyDir, String.valueOf(fontSize) + ".h");
     File outputCppFile = new File(familyDir, String.valueOf(fontSize) + ".cpp");
+    cppFile = outputCppFile;
+    rdfFile = rdf ? new File(familyDir, String.valueOf(fontSize) + ".rdf") : null;
     String varName = fullFontName.replaceAll("-", "_").replaceAll(" ", "_")
         + "_" + String.valueOf(fontSize);
+    written.clear();
+    unchanged.clear();
+    File[] targets = (rdfFile == null)
+        ? new File[] { outputHeaderFile, outputCppFile }
+        : new File[] { outputHeaderFile, outputCppFile, rdfFile };
+    File[] outputs = new File[targets.length];
+    try {
+      for (int i = 0; i < targets.length; ++i) {
+        // Not File.createTempFile(), which would leave the files readable by the
+        // owner only.
+        outputs[i] = reproducible ? new File(familyDir, "." + targets[i].getName() + ".tmp") : targets[i];
+      }
+      int size = writeFiles(encoder, fontSize, varName, outputs[0], outputs[1],
+          rdfFile == null ? null : outputs[2]);
+      for (int i = 0; i < targets.length; ++i) {
+        if (!reproducible || replaceIfChanged(outputs[i], targets[i])) {
+          written.add(targets[i]);
+        } else {
+          unchanged.add(targets[i]);
+        }
+      }
+      return size;
+    } finally {
+      if (reproducible) {
+        for (File output : outputs) {
+          if (output != null) {
+            output.delete();
+          }
+        }
+      }
+    }
+  }
 
+  private int writeFiles(FontEncoder encoder, int fontSize, String varName, File outputHeaderFile,
+      File outputCppFile, File outputRdfFile) throws IOException {
     Writer headerWriter = new BufferedWriter(
         new OutputStreamWriter(new FileOutputStream(outputHeaderFile)));
     headerWriter.write("#include \"roo_display/font/font.h\"\n\n");
@@ -42,25 +143,166 @@ class FontWriter {
     headerWriter.flush();
     headerWriter.close();
 
-    Writer cppWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(outputCppFile)));
-    cppWriter.write("#include \"" + String.valueOf(fontSize) + ".h\"\n");
-    cppWriter.write("#include \"pgmspace.h\"\n");
-    cppWriter.write("#include <inttypes.h>\n");
-    cppWriter.write("#include \"roo_display/font/smooth_font.h\"\n\n");
-    cppWriter.write("namespace roo_display {\n\n");
-    int size = encoder.writeDefinition(cppWriter, varName + "_data", rle);
-
-    cppWriter.write("\n");
-    cppWriter.write("const Font& " + varName + "() {\n");
-    cppWriter.write("  static SmoothFont font(" + varName + "_data" + ");\n");
-    cppWriter.write("  return font;\n");
-    cppWriter.write("}\n");
-
-    cppWriter.write("\n}  // namespace roo_display\n");
-
-    cppWriter.flush();
-    cppWriter.close();
+    int size;
+    try (HexFileWriter cppWriter = new HexFileWriter(outputCppFile)) {
+      cppWriter.writeText("#include \"" + String.valueOf(fontSize) + ".h\"\n");
+      cppWriter.writeText("#include \"pgmspace.h\"\n");
+      cppWriter.writeText("#include <inttypes.h>\n");
+      cppWriter.writeText("#include \"roo_display/font/smooth_font.h\"\n\n");
+      cppWriter.writeText("namespace roo_display {\n\n");
+      // The font data gets encoded once, and written to both files.
+      if (outputRdfFile == null) {
+        size = encoder.writeDefinition(cppWriter, varName + "_data", compression);
+      } else {
+        try (RdfWriter rdfWriter = new RdfWriter(outputRdfFile)) {
+          size = encoder.writeDefinition(new TeeWriter(cppWriter, rdfWriter), varName + "_data", compression);
+        }
+      }
+
+      dataBytes = cppWriter.getDataBytes();
+
+      cppWriter.writeText("\n");
+      cppWriter.writeText("const Font& " + varName + "() {\n");
+      cppWriter.writeText("  static SmoothFont font(" + varName + "_data" + ");\n");
+      cppWriter.writeText("  return font;\n");
+      cppWriter.writeText("}\n");
+
+      cppWriter.writeText("\n}  // namespace roo_display\n");
+    }
     return size;
   }
+
+  // Moves the newly written file in place of the target, unless the target
+  // already has the same content (compared by size and SHA-256). Returns
+  // whether the target has been replaced.
+  private static boolean replaceIfChanged(File output, File target) throws IOException {
+    if (target.isFile() && target.length() == output.length()
+        && Arrays.equals(digest(target), digest(output))) {
+      return false;
+    }
+    Files.move(output.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return true;
+  }
+
+  private static byte[] digest(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(65536);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    return digest.digest();
+  }
+
+  // Forwards everything to the hex writer, and the font data to the binary
+  // writer as well.
+  private static class TeeWriter extends PayloadWriter {
+    private final PayloadWriter hex;
+    private final PayloadWriter binary;
+
+    TeeWriter(PayloadWriter hex, PayloadWriter binary) {
+      this.hex = hex;
+      this.binary = binary;
+    }
+
+    @Override
+    public int getBytesWritten() {
+      return hex.getBytesWritten();
+    }
+
+    @Override
+    public void writeDeclaration(String var) throws IOException {
+      hex.writeDeclaration(var);
+    }
+
+    @Override
+    public void beginStatic(String var) throws IOException {
+      hex.beginStatic(var);
+    }
+
+    @Override
+    public void beginExtern(String var) throws IOException {
+      hex.beginExtern(var);
+    }
+
+    @Override
+    public void printComment(String comment) throws IOException {
+      hex.printComment(comment);
+    }
+
+    @Override
+    public void newLine() throws IOException {
+      hex.newLine();
+    }
+
+    @Override
+    public void end() throws IOException {
+      hex.end();
+    }
+
+    @Override
+    public void printHex8(int value) throws IOException {
+      hex.printHex8(value);
+      binary.printHex8(value);
+    }
+
+    @Override
+    public void printSignedHex8(int value) throws IOException {
+      hex.printSignedHex8(value);
+      binary.printSignedHex8(value);
+    }
+
+    @Override
+    public void printHex16(int value) throws IOException {
+      hex.printHex16(value);
+      binary.printHex16(value);
+    }
+
+    @Override
+    public void printSignedHex16(int value) throws IOException {
+      hex.printSignedHex16(value);
+      binary.printSignedHex16(value);
+    }
+
+    @Override
+    public void printHex24(int value) throws IOException {
+      hex.printHex24(value);
+      binary.printHex24(value);
+    }
+
+    @Override
+    public void printSignedHex24(int value) throws IOException {
+      hex.printSignedHex24(value);
+      binary.printSignedHex24(value);
+    }
+
+    @Override
+    public void printBuffer(byte[] buffer) throws IOException {
+      hex.printBuffer(buffer);
+      binary.printBuffer(buffer);
+    }
+
+    // writeByte() and writeBytes() are protected in the delegates; their
+    // public counterparts write the same bytes.
+    @Override
+    protected void writeByte(int b) throws IOException {
+      hex.printHex8(b & 0xFF);
+      binary.printHex8(b & 0xFF);
+    }
+
+    @Override
+    protected void writeBytes(byte[] bytes) throws IOException {
+      hex.printBuffer(bytes);
+      binary.printBuffer(bytes);
+    }
+  }
 }
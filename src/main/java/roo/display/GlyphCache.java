@@ -0,0 +1,345 @@
+package roo.display;
+
+import java.awt.Font;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Persistent cache of rasterized glyphs, so that re-running the importer on an
+// unchanged font only rasterizes the code points it has not seen before.
+//
+// Each font size gets a single file, named after a hash of the font file
+// contents, the font attributes (including the size), the rendering settings
+// of GlyphImporter, and the alpha bits. The file is memory-mapped, and
+// consists of a header, an index sorted by code point, and glyph records:
+//
+//   header: magic, glyph count (int each)
+//   index:  code point, record offset (int each), per glyph
+//   record: xMin, yMin, xMax, yMax, advance (int each), raster (w * h bytes)
+//
+// When the files exceed the size limit, the least recently used ones (by
+// modification time, bumped whenever a file is opened) are evicted.
+class GlyphCache {
+
+  private static final int MAGIC = 0x52474331; // "RGC1"
+  private static final int HEADER_SIZE = 8;
+  private static final int INDEX_ENTRY_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 20;
+  private static final String SUFFIX = ".glyphs";
+
+  // Identifies the rasterization done by GlyphImporter. Must be changed
+  // whenever the rasterization changes, to invalidate the existing entries.
+  private static final String RENDERING =
+    "antialias=on,text-antialias=on,render=quality,canvas=5x,gray8";
+
+  private final File dir;
+  private final long maxBytes;
+  private final String fontDigest;
+  private final boolean rebuild;
+
+  // Uses the specified directory, keeping it under maxBytes. The font file
+  // identifies the content of the font. If rebuild is set, existing entries
+  // are ignored, and overwritten.
+  GlyphCache(File dir, long maxBytes, File fontFile, boolean rebuild)
+    throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.rebuild = rebuild;
+    MessageDigest digest = newDigest();
+    try (InputStream in = Files.newInputStream(fontFile.toPath())) {
+      byte[] buf = new byte[65536];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        digest.update(buf, 0, len);
+      }
+    }
+    this.fontDigest = toHex(digest.digest());
+    Files.createDirectories(dir.toPath());
+  }
+
+  // Opens the cached glyphs of the specified font (at its size).
+  Sheet open(Font font, RooDisplayFont.AlphaBits bits) throws IOException {
+    StringBuilder key = new StringBuilder();
+    key.append(fontDigest).append('|').append(font.getPSName());
+    // Sorted, so that the key does not depend on the map ordering.
+    Map<String, String> attributes = new TreeMap<>();
+    font
+      .getAttributes()
+      .forEach((k, v) -> attributes.put(k.toString(), String.valueOf(v)));
+    key.append('|').append(attributes);
+    key.append('|').append(RENDERING).append('|').append(bits);
+    byte[] hash = newDigest()
+      .digest(key.toString().getBytes(StandardCharsets.UTF_8));
+    File file = new File(dir, toHex(hash).substring(0, 32) + SUFFIX);
+    ByteBuffer data = null;
+    if (!rebuild && file.isFile()) {
+      file.setLastModified(System.currentTimeMillis());
+      data = map(file);
+    }
+    return new Sheet(file, data);
+  }
+
+  // Cached glyphs of a single font size. Safe to use from multiple threads.
+  // The rasters of the cached glyphs are read from the mapped file as needed.
+  class Sheet implements RooDisplayFont.RasterStore {
+
+    private final File file;
+    private final ByteBuffer data; // Null if nothing was cached.
+    private final int count;
+    private final Map<Integer, RooDisplayFont.Glyph> added =
+      new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private Sheet(File file, ByteBuffer data) {
+      this.file = file;
+      this.data = data;
+      this.count = data == null ? 0 : data.getInt(4);
+    }
+
+    // Returns the cached glyph for the code point, or null if not cached.
+    RooDisplayFont.Glyph get(int codepoint) {
+      int idx = indexOf(codepoint);
+      if (idx < 0) {
+        return null;
+      }
+      hits.incrementAndGet();
+      int offset = data.getInt(HEADER_SIZE + idx * INDEX_ENTRY_SIZE + 4);
+      RooDisplayFont.BoundingBox bbox = new RooDisplayFont.BoundingBox(
+        data.getInt(offset),
+        data.getInt(offset + 4),
+        data.getInt(offset + 8),
+        data.getInt(offset + 12)
+      );
+      int advance = data.getInt(offset + 16);
+      return new RooDisplayFont.Glyph(
+        bbox,
+        codepoint,
+        advance,
+        this,
+        offset + RECORD_HEADER_SIZE
+      );
+    }
+
+    @Override
+    public byte[] read(long offset, int length) {
+      byte[] raster = new byte[length];
+      ByteBuffer src = data.duplicate();
+      src.position((int) offset);
+      src.get(raster);
+      return raster;
+    }
+
+    // Adds a newly rasterized glyph, to be persisted by save().
+    void put(RooDisplayFont.Glyph glyph) {
+      added.put(glyph.getCodePoint(), glyph);
+    }
+
+    // Number of glyphs found in the cache.
+    int getHits() {
+      return hits.get();
+    }
+
+    // Number of glyphs added since the sheet has been opened.
+    int getMisses() {
+      return added.size();
+    }
+
+    // Persists the added glyphs (if any), together with the previously cached
+    // ones, and evicts old entries if the cache got too large.
+    void save() throws IOException {
+      if (added.isEmpty()) {
+        return;
+      }
+      List<Integer> codepoints = new ArrayList<>(added.keySet());
+      for (int i = 0; i < count; ++i) {
+        int codepoint = codepointAt(i);
+        if (!added.containsKey(codepoint)) {
+          codepoints.add(codepoint);
+        }
+      }
+      codepoints.sort(null);
+      File tmp = File.createTempFile("tmp", SUFFIX + ".part", dir);
+      try {
+        try (
+          DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp))
+          )
+        ) {
+          out.writeInt(MAGIC);
+          out.writeInt(codepoints.size());
+          int offset = HEADER_SIZE + codepoints.size() * INDEX_ENTRY_SIZE;
+          for (int codepoint : codepoints) {
+            out.writeInt(codepoint);
+            out.writeInt(offset);
+            offset += RECORD_HEADER_SIZE + rasterSizeOf(codepoint);
+          }
+          for (int codepoint : codepoints) {
+            RooDisplayFont.Glyph glyph = added.get(codepoint);
+            if (glyph == null) {
+              writeCachedRecord(out, indexOf(codepoint));
+              continue;
+            }
+            RooDisplayFont.BoundingBox bbox = glyph.getBoundingBox();
+            out.writeInt(bbox.xMin);
+            out.writeInt(bbox.yMin);
+            out.writeInt(bbox.xMax);
+            out.writeInt(bbox.yMax);
+            out.writeInt(glyph.getAdvance());
+            out.write(glyph.getRaster(), 0, rasterSize(bbox));
+          }
+        }
+        Files.move(
+          tmp.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE
+        );
+      } finally {
+        tmp.delete();
+      }
+      evict(file);
+    }
+
+    private int rasterSizeOf(int codepoint) {
+      RooDisplayFont.Glyph glyph = added.get(codepoint);
+      if (glyph != null) {
+        return rasterSize(glyph.getBoundingBox());
+      }
+      int offset = data.getInt(
+        HEADER_SIZE + indexOf(codepoint) * INDEX_ENTRY_SIZE + 4
+      );
+      return rasterSize(
+        new RooDisplayFont.BoundingBox(
+          data.getInt(offset),
+          data.getInt(offset + 4),
+          data.getInt(offset + 8),
+          data.getInt(offset + 12)
+        )
+      );
+    }
+
+    private void writeCachedRecord(DataOutputStream out, int idx)
+      throws IOException {
+      int offset = data.getInt(HEADER_SIZE + idx * INDEX_ENTRY_SIZE + 4);
+      int length = RECORD_HEADER_SIZE + rasterSizeOf(codepointAt(idx));
+      byte[] record = new byte[length];
+      ByteBuffer src = data.duplicate();
+      src.position(offset);
+      src.get(record);
+      out.write(record);
+    }
+
+    private int codepointAt(int idx) {
+      return data.getInt(HEADER_SIZE + idx * INDEX_ENTRY_SIZE);
+    }
+
+    // Binary search over the index; returns -1 if not found.
+    private int indexOf(int codepoint) {
+      int lo = 0;
+      int hi = count - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int value = codepointAt(mid);
+        if (value < codepoint) {
+          lo = mid + 1;
+        } else if (value > codepoint) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+  }
+
+  // Deletes the least recently used files, other than the one just written,
+  // until the cache fits within maxBytes.
+  private synchronized void evict(File keep) {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File f : files) {
+      total += f.length();
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File f : files) {
+      if (total <= maxBytes) {
+        break;
+      }
+      if (f.equals(keep)) {
+        continue;
+      }
+      long length = f.length();
+      if (f.delete()) {
+        total -= length;
+      }
+    }
+  }
+
+  // Maps the file, or returns null if it is not a valid cache file.
+  private static ByteBuffer map(File file) throws IOException {
+    try (
+      FileChannel channel = FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.READ
+      )
+    ) {
+      if (channel.size() < HEADER_SIZE) {
+        return null;
+      }
+      ByteBuffer data = channel.map(
+        FileChannel.MapMode.READ_ONLY,
+        0,
+        channel.size()
+      );
+      if (
+        data.getInt(0) != MAGIC ||
+        HEADER_SIZE + (long) data.getInt(4) * INDEX_ENTRY_SIZE > data.limit()
+      ) {
+        return null;
+      }
+      return data;
+    }
+  }
+
+  private static int rasterSize(RooDisplayFont.BoundingBox bbox) {
+    return bbox.isEmpty() ? 0 : bbox.getWidth() * bbox.getHeight();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder();
+    for (byte b : bytes) {
+      result.append(String.format("%02x", b));
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,167 @@
+package roo.display;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+import hexwriter.PayloadWriter;
+
+// Writes exactly the same text as HexWriter over a BufferedWriter, but much
+// faster: bytes are formatted using a lookup table, straight into a reusable
+// byte buffer, which gets written to the file through a FileChannel. Only the
+// comments and the other text need character encoding (in the platform
+// default charset, as the BufferedWriter would do).
+class HexFileWriter extends PayloadWriter implements Closeable {
+
+  // "0xHH," for each byte value.
+  private static final byte[] HEX = new byte[256 * 5];
+
+  static {
+    byte[] digits = "0123456789ABCDEF".getBytes(Charset.forName("US-ASCII"));
+    for (int i = 0; i < 256; ++i) {
+      HEX[5 * i] = '0';
+      HEX[5 * i + 1] = 'x';
+      HEX[5 * i + 2] = digits[i >> 4];
+      HEX[5 * i + 3] = digits[i & 0xF];
+      HEX[5 * i + 4] = ',';
+    }
+  }
+
+  private static final byte[] NEW_LINE = {'\n', ' ', ' '};
+  private static final byte[] COMMENT = {'/', '/', ' '};
+  private static final byte[] END = {'\n', '}', ';', '\n'};
+
+  // Room for the longest fixed sequence (" 0xHH,"), so that bytes can be
+  // formatted without checking the space left for each character.
+  private static final int SLACK = 8;
+
+  private final FileChannel channel;
+  private final Charset charset = Charset.defaultCharset();
+  private final byte[] buffer = new byte[1 << 16];
+  private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+  private int pos;
+  private boolean inline;
+  private long dataBytes;
+
+  HexFileWriter(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  // Writes the text as is (e.g. the #include lines).
+  void writeText(String text) throws IOException {
+    for (int i = 0; i < text.length(); ++i) {
+      if (text.charAt(i) >= 0x80) {
+        put(text.getBytes(charset));
+        return;
+      }
+    }
+    for (int i = 0; i < text.length(); ++i) {
+      if (pos == buffer.length) {
+        flush();
+      }
+      buffer[pos++] = (byte) text.charAt(i);
+    }
+  }
+
+  @Override
+  public void writeDeclaration(String var) throws IOException {
+    writeText("static const uint8_t " + var + "[] PROGMEM;");
+  }
+
+  @Override
+  public void beginStatic(String var) throws IOException {
+    writeText("static const uint8_t " + var + "[] PROGMEM = {");
+    newLine();
+  }
+
+  @Override
+  public void beginExtern(String var) throws IOException {
+    writeText("extern const uint8_t " + var + "[] PROGMEM = {");
+    newLine();
+  }
+
+  @Override
+  public void printComment(String comment) throws IOException {
+    if (inline) {
+      writeText(" ");
+    }
+    put(COMMENT);
+    writeText(comment);
+  }
+
+  @Override
+  public void newLine() throws IOException {
+    put(NEW_LINE);
+    inline = false;
+  }
+
+  @Override
+  public void end() throws IOException {
+    put(END);
+  }
+
+  @Override
+  protected void writeByte(int val) throws IOException {
+    if (pos > buffer.length - SLACK) {
+      flush();
+    }
+    if (inline) {
+      buffer[pos++] = ' ';
+    }
+    System.arraycopy(HEX, 5 * (val & 0xFF), buffer, pos, 5);
+    pos += 5;
+    inline = true;
+    ++dataBytes;
+  }
+
+  // Number of data bytes written. Unlike getBytesWritten(), also counts the
+  // bytes of 16- and 24-bit values.
+  long getDataBytes() {
+    return dataBytes;
+  }
+
+  @Override
+  protected void writeBytes(byte[] bytes) throws IOException {
+    for (int i = 0; i < bytes.length; ++i) {
+      if (i > 0 && i % 16 == 0) {
+        newLine();
+      }
+      writeByte(bytes[i]);
+    }
+  }
+
+  private void put(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (pos == buffer.length) {
+        flush();
+      }
+      int len = Math.min(bytes.length - offset, buffer.length - pos);
+      System.arraycopy(bytes, offset, buffer, pos, len);
+      pos += len;
+      offset += len;
+    }
+  }
+
+  private void flush() throws IOException {
+    wrapped.clear().limit(pos);
+    while (wrapped.hasRemaining()) {
+      channel.write(wrapped);
+    }
+    pos = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+}
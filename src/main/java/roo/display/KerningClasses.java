@@ -0,0 +1,149 @@
+package roo.display;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Class-based representation of the kerning pairs: glyphs whose kerning rows
+// (as the left glyph) are identical share a left class, and glyphs whose
+// kerning columns (as the right glyph) are identical share a right class. The
+// kerning of any pair then only depends on the pair of classes, so it can be
+// stored in a (much smaller) class matrix, and looked up in O(1).
+//
+// Class 0 is reserved for glyphs that do not kern on that side. Classes are
+// numbered in the order of their first glyph.
+class KerningClasses {
+
+  private final int[] leftClasses; // Per glyph index.
+  private final int[] rightClasses; // Per glyph index.
+  private final int leftClassCount; // Not including class 0.
+  private final int rightClassCount; // Not including class 0.
+  private final int[][] matrix; // [left class - 1][right class - 1]; 0 if none.
+  private final int pairCount;
+
+  // Computes the classes for the kerning pairs between the glyphs, in the
+  // order in which they are given.
+  KerningClasses(List<RooDisplayFont.Glyph> glyphs, RooDisplayFont.KerningPairs pairs) {
+    Map<Integer, Integer> glyphIndex = new HashMap<>();
+    for (int i = 0; i < glyphs.size(); ++i) {
+      glyphIndex.put(glyphs.get(i).getCodePoint(), i);
+    }
+    // Rows and columns, as lists of packed (other glyph index, kern), sorted.
+    List<List<Long>> rows = new ArrayList<>();
+    List<List<Long>> columns = new ArrayList<>();
+    for (int i = 0; i < glyphs.size(); ++i) {
+      rows.add(new ArrayList<>());
+      columns.add(new ArrayList<>());
+    }
+    for (int i = 0; i < pairs.size(); ++i) {
+      int left = glyphIndex.get(pairs.getLeft(i));
+      int right = glyphIndex.get(pairs.getRight(i));
+      long kern = pairs.getKern(i);
+      rows.get(left).add(((long) right << 32) | kern);
+      columns.get(right).add(((long) left << 32) | kern);
+    }
+    leftClasses = new int[glyphs.size()];
+    rightClasses = new int[glyphs.size()];
+    leftClassCount = assignClasses(rows, leftClasses);
+    rightClassCount = assignClasses(columns, rightClasses);
+
+    matrix = new int[leftClassCount][rightClassCount];
+    int count = 0;
+    for (int i = 0; i < pairs.size(); ++i) {
+      int leftClass = leftClasses[glyphIndex.get(pairs.getLeft(i))];
+      int rightClass = rightClasses[glyphIndex.get(pairs.getRight(i))];
+      if (matrix[leftClass - 1][rightClass - 1] == 0) {
+        ++count;
+      }
+      matrix[leftClass - 1][rightClass - 1] = pairs.getKern(i);
+    }
+    pairCount = count;
+  }
+
+  // Assigns the same class to glyphs with identical (non-empty) lists, and
+  // class 0 to glyphs with empty lists. Returns the number of classes, not
+  // including class 0.
+  private static int assignClasses(List<List<Long>> lists, int[] classes) {
+    Map<List<Long>, Integer> classByList = new HashMap<>();
+    for (int i = 0; i < lists.size(); ++i) {
+      List<Long> list = lists.get(i);
+      if (list.isEmpty()) {
+        classes[i] = 0;
+        continue;
+      }
+      list.sort(null);
+      Integer cls = classByList.get(list);
+      if (cls == null) {
+        cls = classByList.size() + 1;
+        classByList.put(list, cls);
+      }
+      classes[i] = cls;
+    }
+    return classByList.size();
+  }
+
+  public int getLeftClass(int glyphIndex) {
+    return leftClasses[glyphIndex];
+  }
+
+  public int getRightClass(int glyphIndex) {
+    return rightClasses[glyphIndex];
+  }
+
+  public int getLeftClassCount() {
+    return leftClassCount;
+  }
+
+  public int getRightClassCount() {
+    return rightClassCount;
+  }
+
+  // Returns the kerning between the classes (both at least 1), or 0 if none.
+  public int getKern(int leftClass, int rightClass) {
+    return matrix[leftClass - 1][rightClass - 1];
+  }
+
+  // Number of (left class, right class) pairs that kern.
+  public int getPairCount() {
+    return pairCount;
+  }
+
+  // Number of bytes per class index: 1 if all classes fit in a byte.
+  public int getClassBytes() {
+    return Math.max(leftClassCount, rightClassCount) < 256 ? 1 : 2;
+  }
+
+  // Whether the dense matrix takes no more space than the sparse one.
+  public boolean isDense() {
+    return denseMatrixBytes() <= sparseMatrixBytes();
+  }
+
+  // Size of the encoded table: the format and class counts, the class map, and
+  // the matrix.
+  public int getEncodedSize() {
+    return 5
+        + 2 * getClassBytes() * leftClasses.length
+        + Math.min(denseMatrixBytes(), sparseMatrixBytes());
+  }
+
+  private int denseMatrixBytes() {
+    return leftClassCount * rightClassCount;
+  }
+
+  // Per-left-class start offsets (2 bytes each, plus the end), and a
+  // (right class, kern) entry per class pair. Not an option if the offsets
+  // don't fit in 2 bytes.
+  private int sparseMatrixBytes() {
+    if (pairCount > 0xFFFF) {
+      return Integer.MAX_VALUE;
+    }
+    return 2 * (leftClassCount + 1) + pairCount * (getClassBytes() + 1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d left classes, %d right classes, %d class pairs", leftClassCount, rightClassCount, pairCount);
+  }
+}
@@ -0,0 +1,574 @@
+package roo.display;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Reads pair kerning directly from the OpenType tables of a font file: the
+// pair adjustment lookups of the 'kern' feature in GPOS or, if the font has no
+// GPOS kerning, the legacy 'kern' table. Values are in font design units; use
+// getUnitsPerEm() to scale them to a pixel size.
+//
+// As a shaper would, only the lookups of the default language system of the
+// script of the pair are applied (falling back to the DFLT, then the latn
+// script), so that a pair covered by the lookups of several scripts is not
+// kerned several times.
+class OpenTypeKerning {
+
+  // Returned by subtables that do not cover a given pair.
+  private static final int NO_MATCH = Integer.MIN_VALUE;
+
+  private interface PairSubtable {
+    // Returns the x-advance adjustment of the first glyph, or NO_MATCH.
+    int lookup(int firstGlyph, int secondGlyph);
+  }
+
+  private final int unitsPerEm;
+  private final Map<Integer, Integer> cmap;
+
+  // GPOS 'kern' lookups of each script (by tag), in the order of application.
+  // Each lookup is a list of subtables; the first subtable that matches a
+  // pair wins.
+  private final Map<Integer, List<List<PairSubtable>>> lookups;
+
+  // Pairs from the legacy 'kern' table, keyed by (left << 16 | right) glyph ids.
+  private final Map<Integer, Integer> legacyPairs;
+
+  private OpenTypeKerning(
+    int unitsPerEm,
+    Map<Integer, Integer> cmap,
+    Map<Integer, List<List<PairSubtable>>> lookups,
+    Map<Integer, Integer> legacyPairs
+  ) {
+    this.unitsPerEm = unitsPerEm;
+    this.cmap = cmap;
+    this.lookups = lookups;
+    this.legacyPairs = legacyPairs;
+  }
+
+  // Reads the kerning of the font with the specified PostScript name from the
+  // file. The name selects the font within a collection (null for the first
+  // one); fails if there is no font of that name in the collection.
+  public static OpenTypeKerning read(File file, String postScriptName) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    try {
+      return parse(data, postScriptName);
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new IOException("Malformed font file: " + file, e);
+    }
+  }
+
+  // Returns true if the font defines no kerning at all.
+  public boolean isEmpty() {
+    return lookups.values().stream().allMatch(List::isEmpty) && legacyPairs.isEmpty();
+  }
+
+  public int getUnitsPerEm() {
+    return unitsPerEm;
+  }
+
+  // Returns the glyph id for the code point, or 0 (.notdef) if not mapped.
+  public int getGlyphId(int codepoint) {
+    Integer glyph = cmap.get(codepoint);
+    return glyph == null ? 0 : glyph;
+  }
+
+  // Returns the adjustment, in font design units, of the advance of the left
+  // glyph when followed by the right glyph. Negative values bring the glyphs
+  // closer together.
+  public int getAdjustment(int leftCodepoint, int rightCodepoint) {
+    int leftGlyph = getGlyphId(leftCodepoint);
+    int rightGlyph = getGlyphId(rightCodepoint);
+    if (leftGlyph == 0 || rightGlyph == 0) {
+      return 0;
+    }
+    if (!lookups.isEmpty()) {
+      List<List<PairSubtable>> scriptLookups = lookups.get(scriptTag(leftCodepoint, rightCodepoint));
+      if (scriptLookups == null) {
+        scriptLookups = lookups.get(tag("DFLT"));
+      }
+      if (scriptLookups == null) {
+        scriptLookups = lookups.getOrDefault(tag("latn"), new ArrayList<>());
+      }
+      int total = 0;
+      for (List<PairSubtable> lookup : scriptLookups) {
+        for (PairSubtable subtable : lookup) {
+          int value = subtable.lookup(leftGlyph, rightGlyph);
+          if (value != NO_MATCH) {
+            total += value;
+            break;
+          }
+        }
+      }
+      return total;
+    }
+    Integer value = legacyPairs.get(leftGlyph << 16 | rightGlyph);
+    return value == null ? 0 : value;
+  }
+
+  // Returns the OpenType script tag that the pair would be shaped with: that
+  // of the first of its characters that has a specific script (i.e. not
+  // punctuation, digits, or combining marks), or DFLT.
+  private static int scriptTag(int leftCodepoint, int rightCodepoint) {
+    Character.UnicodeScript script = Character.UnicodeScript.of(leftCodepoint);
+    if (script == Character.UnicodeScript.COMMON || script == Character.UnicodeScript.INHERITED) {
+      script = Character.UnicodeScript.of(rightCodepoint);
+    }
+    switch (script) {
+      case LATIN:
+        return tag("latn");
+      case GREEK:
+        return tag("grek");
+      case CYRILLIC:
+        return tag("cyrl");
+      case ARMENIAN:
+        return tag("armn");
+      case GEORGIAN:
+        return tag("geor");
+      case HEBREW:
+        return tag("hebr");
+      case ARABIC:
+        return tag("arab");
+      case THAI:
+        return tag("thai");
+      default:
+        return tag("DFLT");
+    }
+  }
+
+  private static OpenTypeKerning parse(ByteBuffer data, String postScriptName) throws IOException {
+    Map<Integer, Integer> tables;
+    if (data.getInt(0) == tag("ttcf")) {
+      tables = findFont(data, postScriptName);
+    } else {
+      tables = readTableDirectory(data, 0);
+    }
+    Integer head = tables.get(tag("head"));
+    Integer cmap = tables.get(tag("cmap"));
+    if (head == null || cmap == null) {
+      throw new IOException("Not an OpenType font (missing head or cmap)");
+    }
+    int unitsPerEm = u16(data, head + 18);
+    Map<Integer, List<List<PairSubtable>>> lookups = new HashMap<>();
+    Map<Integer, Integer> legacyPairs = new HashMap<>();
+    Integer gpos = tables.get(tag("GPOS"));
+    if (gpos != null) {
+      lookups = parseGposKerning(data, gpos);
+    }
+    Integer kern = tables.get(tag("kern"));
+    if (lookups.values().stream().allMatch(List::isEmpty) && kern != null) {
+      lookups.clear();
+      legacyPairs = parseLegacyKerning(data, kern);
+    }
+    return new OpenTypeKerning(
+      unitsPerEm,
+      parseCmap(data, cmap),
+      lookups,
+      legacyPairs
+    );
+  }
+
+  // Returns the table directory (offsets by tag) of the font with the
+  // specified PostScript name (or of the first font, if null) in a collection.
+  private static Map<Integer, Integer> findFont(ByteBuffer data, String postScriptName) throws IOException {
+    int numFonts = data.getInt(8);
+    for (int i = 0; i < numFonts; ++i) {
+      Map<Integer, Integer> tables = readTableDirectory(data, data.getInt(12 + 4 * i));
+      if (postScriptName == null) {
+        return tables;
+      }
+      Integer name = tables.get(tag("name"));
+      if (name != null && postScriptName.equals(readPostScriptName(data, name))) {
+        return tables;
+      }
+    }
+    throw new IOException("No font named " + postScriptName + " in the collection");
+  }
+
+  private static Map<Integer, Integer> readTableDirectory(ByteBuffer data, int fontOffset) {
+    int numTables = u16(data, fontOffset + 4);
+    Map<Integer, Integer> tables = new HashMap<>();
+    for (int i = 0; i < numTables; ++i) {
+      int record = fontOffset + 12 + 16 * i;
+      tables.put(data.getInt(record), data.getInt(record + 8));
+    }
+    return tables;
+  }
+
+  // Returns the PostScript name (name ID 6) from the 'name' table, or null.
+  private static String readPostScriptName(ByteBuffer data, int name) {
+    int count = u16(data, name + 2);
+    int strings = name + u16(data, name + 4);
+    for (int i = 0; i < count; ++i) {
+      int record = name + 6 + 12 * i;
+      int platform = u16(data, record);
+      if (u16(data, record + 6) != 6 || platform > 3) {
+        continue;
+      }
+      byte[] bytes = new byte[u16(data, record + 8)];
+      ByteBuffer string = data.duplicate();
+      string.position(strings + u16(data, record + 10));
+      string.get(bytes);
+      // Unicode and Windows names are UTF-16; Macintosh ones are (for
+      // PostScript names) ASCII.
+      return new String(bytes, platform == 1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_16BE);
+    }
+    return null;
+  }
+
+  // Parses the best available Unicode subtable: format 12 (full repertoire) if
+  // present, or format 4 (BMP) otherwise.
+  private static Map<Integer, Integer> parseCmap(ByteBuffer data, int cmap)
+    throws IOException {
+    int numSubtables = u16(data, cmap + 2);
+    int format4 = -1;
+    int format12 = -1;
+    for (int i = 0; i < numSubtables; ++i) {
+      int record = cmap + 4 + 8 * i;
+      int platform = u16(data, record);
+      int encoding = u16(data, record + 2);
+      int offset = cmap + data.getInt(record + 4);
+      boolean unicode =
+        platform == 0 || (platform == 3 && (encoding == 1 || encoding == 10));
+      if (!unicode) {
+        continue;
+      }
+      int format = u16(data, offset);
+      if (format == 12 && format12 < 0) {
+        format12 = offset;
+      } else if (format == 4 && format4 < 0) {
+        format4 = offset;
+      }
+    }
+    Map<Integer, Integer> result = new HashMap<>();
+    if (format12 >= 0) {
+      int numGroups = data.getInt(format12 + 12);
+      for (int i = 0; i < numGroups; ++i) {
+        int group = format12 + 16 + 12 * i;
+        int start = data.getInt(group);
+        int end = data.getInt(group + 4);
+        int glyph = data.getInt(group + 8);
+        for (int c = start; c <= end; ++c) {
+          result.put(c, glyph + (c - start));
+        }
+      }
+    } else if (format4 >= 0) {
+      int segCount = u16(data, format4 + 6) / 2;
+      int endCodes = format4 + 14;
+      int startCodes = endCodes + 2 * segCount + 2;
+      int idDeltas = startCodes + 2 * segCount;
+      int idRangeOffsets = idDeltas + 2 * segCount;
+      for (int i = 0; i < segCount; ++i) {
+        int start = u16(data, startCodes + 2 * i);
+        int end = u16(data, endCodes + 2 * i);
+        int delta = u16(data, idDeltas + 2 * i);
+        int rangeOffsetPos = idRangeOffsets + 2 * i;
+        int rangeOffset = u16(data, rangeOffsetPos);
+        for (int c = start; c <= end && c != 0xFFFF; ++c) {
+          int glyph;
+          if (rangeOffset == 0) {
+            glyph = (c + delta) & 0xFFFF;
+          } else {
+            glyph = u16(data, rangeOffsetPos + rangeOffset + 2 * (c - start));
+            if (glyph != 0) {
+              glyph = (glyph + delta) & 0xFFFF;
+            }
+          }
+          if (glyph != 0) {
+            result.put(c, glyph);
+          }
+        }
+      }
+    } else {
+      throw new IOException("No supported Unicode cmap subtable");
+    }
+    return result;
+  }
+
+  // Returns the 'kern' lookups of the default language system of each script
+  // (by tag). Lookups shared by several scripts are only parsed once.
+  private static Map<Integer, List<List<PairSubtable>>> parseGposKerning(
+    ByteBuffer data,
+    int gpos
+  ) {
+    int scriptList = gpos + u16(data, gpos + 4);
+    int featureList = gpos + u16(data, gpos + 6);
+    int lookupList = gpos + u16(data, gpos + 8);
+
+    Map<Integer, List<PairSubtable>> parsed = new HashMap<>();
+    Map<Integer, List<List<PairSubtable>>> result = new HashMap<>();
+    int scriptCount = u16(data, scriptList);
+    for (int i = 0; i < scriptCount; ++i) {
+      int record = scriptList + 2 + 6 * i;
+      int script = scriptList + u16(data, record + 4);
+      int defaultLangSys = u16(data, script);
+      if (defaultLangSys == 0) {
+        continue;
+      }
+      List<List<PairSubtable>> lookups = new ArrayList<>();
+      for (int index : kernLookupIndices(data, script + defaultLangSys, featureList)) {
+        List<PairSubtable> lookup = parsed.computeIfAbsent(
+          index,
+          idx -> parsePairLookup(data, lookupList, idx)
+        );
+        if (!lookup.isEmpty()) {
+          lookups.add(lookup);
+        }
+      }
+      result.put(data.getInt(record), lookups);
+    }
+    return result;
+  }
+
+  // Returns the indices of the lookups of the 'kern' features of the language
+  // system, in order of application (and each only once).
+  private static TreeSet<Integer> kernLookupIndices(ByteBuffer data, int langSys, int featureList) {
+    TreeSet<Integer> indices = new TreeSet<>();
+    List<Integer> features = new ArrayList<>();
+    int requiredFeature = u16(data, langSys + 2);
+    if (requiredFeature != 0xFFFF) {
+      features.add(requiredFeature);
+    }
+    int featureIndexCount = u16(data, langSys + 4);
+    for (int i = 0; i < featureIndexCount; ++i) {
+      features.add(u16(data, langSys + 6 + 2 * i));
+    }
+    for (int featureIndex : features) {
+      int record = featureList + 2 + 6 * featureIndex;
+      if (data.getInt(record) != tag("kern")) {
+        continue;
+      }
+      int feature = featureList + u16(data, record + 4);
+      int lookupIndexCount = u16(data, feature + 2);
+      for (int j = 0; j < lookupIndexCount; ++j) {
+        indices.add(u16(data, feature + 4 + 2 * j));
+      }
+    }
+    return indices;
+  }
+
+  // Parses the pair adjustment subtables of the lookup.
+  private static List<PairSubtable> parsePairLookup(ByteBuffer data, int lookupList, int index) {
+    int lookup = lookupList + u16(data, lookupList + 2 + 2 * index);
+    int type = u16(data, lookup);
+    int subTableCount = u16(data, lookup + 4);
+    List<PairSubtable> subtables = new ArrayList<>();
+    for (int i = 0; i < subTableCount; ++i) {
+      int subtable = lookup + u16(data, lookup + 6 + 2 * i);
+      int subtableType = type;
+      if (type == 9) {
+        // Extension positioning: points to the actual subtable.
+        subtableType = u16(data, subtable + 2);
+        subtable = subtable + data.getInt(subtable + 4);
+      }
+      if (subtableType != 2) {
+        continue;
+      }
+      switch (u16(data, subtable)) {
+        case 1:
+          subtables.add(parsePairPosFormat1(data, subtable));
+          break;
+        case 2:
+          subtables.add(parsePairPosFormat2(data, subtable));
+          break;
+        default:
+          break;
+      }
+    }
+    return subtables;
+  }
+
+  // Pair adjustment with individually listed pairs.
+  private static PairSubtable parsePairPosFormat1(
+    ByteBuffer data,
+    int subtable
+  ) {
+    Map<Integer, Integer> coverage = parseCoverage(
+      data,
+      subtable + u16(data, subtable + 2)
+    );
+    int valueFormat1 = u16(data, subtable + 4);
+    int valueFormat2 = u16(data, subtable + 6);
+    int recordSize =
+      2 + valueRecordSize(valueFormat1) + valueRecordSize(valueFormat2);
+    Map<Integer, Map<Integer, Integer>> pairs = new HashMap<>();
+    for (Map.Entry<Integer, Integer> covered : coverage.entrySet()) {
+      int pairSet = subtable + u16(data, subtable + 10 + 2 * covered.getValue());
+      int pairValueCount = u16(data, pairSet);
+      Map<Integer, Integer> seconds = new HashMap<>();
+      for (int i = 0; i < pairValueCount; ++i) {
+        int record = pairSet + 2 + recordSize * i;
+        seconds.put(
+          u16(data, record),
+          xAdvance(data, record + 2, valueFormat1)
+        );
+      }
+      pairs.put(covered.getKey(), seconds);
+    }
+    return (first, second) -> {
+      Map<Integer, Integer> seconds = pairs.get(first);
+      if (seconds == null) {
+        return NO_MATCH;
+      }
+      Integer value = seconds.get(second);
+      return value == null ? NO_MATCH : value;
+    };
+  }
+
+  // Pair adjustment by glyph classes.
+  private static PairSubtable parsePairPosFormat2(
+    ByteBuffer data,
+    int subtable
+  ) {
+    Map<Integer, Integer> coverage = parseCoverage(
+      data,
+      subtable + u16(data, subtable + 2)
+    );
+    int valueFormat1 = u16(data, subtable + 4);
+    int valueFormat2 = u16(data, subtable + 6);
+    Map<Integer, Integer> classDef1 = parseClassDef(
+      data,
+      subtable + u16(data, subtable + 8)
+    );
+    Map<Integer, Integer> classDef2 = parseClassDef(
+      data,
+      subtable + u16(data, subtable + 10)
+    );
+    int class1Count = u16(data, subtable + 12);
+    int class2Count = u16(data, subtable + 14);
+    int recordSize = valueRecordSize(valueFormat1) + valueRecordSize(valueFormat2);
+    int[][] values = new int[class1Count][class2Count];
+    for (int i = 0; i < class1Count; ++i) {
+      for (int j = 0; j < class2Count; ++j) {
+        int record = subtable + 16 + recordSize * (i * class2Count + j);
+        values[i][j] = xAdvance(data, record, valueFormat1);
+      }
+    }
+    return (first, second) -> {
+      if (!coverage.containsKey(first)) {
+        return NO_MATCH;
+      }
+      int class1 = classDef1.getOrDefault(first, 0);
+      int class2 = classDef2.getOrDefault(second, 0);
+      if (class1 >= class1Count || class2 >= class2Count) {
+        return NO_MATCH;
+      }
+      return values[class1][class2];
+    };
+  }
+
+  // Returns the map from covered glyph ids to their coverage indexes.
+  private static Map<Integer, Integer> parseCoverage(ByteBuffer data, int offset) {
+    Map<Integer, Integer> result = new HashMap<>();
+    int format = u16(data, offset);
+    int count = u16(data, offset + 2);
+    if (format == 1) {
+      for (int i = 0; i < count; ++i) {
+        result.put(u16(data, offset + 4 + 2 * i), i);
+      }
+    } else if (format == 2) {
+      for (int i = 0; i < count; ++i) {
+        int range = offset + 4 + 6 * i;
+        int start = u16(data, range);
+        int end = u16(data, range + 2);
+        int startIndex = u16(data, range + 4);
+        for (int g = start; g <= end; ++g) {
+          result.put(g, startIndex + g - start);
+        }
+      }
+    }
+    return result;
+  }
+
+  // Returns the map from glyph ids to their (non-zero) classes.
+  private static Map<Integer, Integer> parseClassDef(ByteBuffer data, int offset) {
+    Map<Integer, Integer> result = new HashMap<>();
+    int format = u16(data, offset);
+    if (format == 1) {
+      int startGlyph = u16(data, offset + 2);
+      int glyphCount = u16(data, offset + 4);
+      for (int i = 0; i < glyphCount; ++i) {
+        result.put(startGlyph + i, u16(data, offset + 6 + 2 * i));
+      }
+    } else if (format == 2) {
+      int rangeCount = u16(data, offset + 2);
+      for (int i = 0; i < rangeCount; ++i) {
+        int range = offset + 4 + 6 * i;
+        int start = u16(data, range);
+        int end = u16(data, range + 2);
+        int glyphClass = u16(data, range + 4);
+        for (int g = start; g <= end; ++g) {
+          result.put(g, glyphClass);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int valueRecordSize(int valueFormat) {
+    return 2 * Integer.bitCount(valueFormat & 0xFF);
+  }
+
+  // Returns the XAdvance field of the value record, or 0 if absent.
+  private static int xAdvance(ByteBuffer data, int record, int valueFormat) {
+    if ((valueFormat & 0x0004) == 0) {
+      return 0;
+    }
+    return data.getShort(record + 2 * Integer.bitCount(valueFormat & 0x0003));
+  }
+
+  // Reads horizontal format 0 subtables of the (Microsoft) 'kern' table.
+  private static Map<Integer, Integer> parseLegacyKerning(
+    ByteBuffer data,
+    int kern
+  ) {
+    Map<Integer, Integer> result = new HashMap<>();
+    if (u16(data, kern) != 0) {
+      // Apple's 'kern' table format; not supported.
+      return result;
+    }
+    int nTables = u16(data, kern + 2);
+    int subtable = kern + 4;
+    for (int i = 0; i < nTables; ++i) {
+      int length = u16(data, subtable + 2);
+      int coverage = u16(data, subtable + 4);
+      boolean horizontal = (coverage & 0x01) != 0;
+      boolean minimum = (coverage & 0x02) != 0;
+      boolean crossStream = (coverage & 0x04) != 0;
+      boolean override = (coverage & 0x08) != 0;
+      int format = coverage >> 8;
+      if (format == 0 && horizontal && !minimum && !crossStream) {
+        int nPairs = u16(data, subtable + 6);
+        for (int j = 0; j < nPairs; ++j) {
+          int pair = subtable + 14 + 6 * j;
+          int key = data.getInt(pair);
+          int value = data.getShort(pair + 4);
+          if (override) {
+            result.put(key, value);
+          } else {
+            result.merge(key, value, Integer::sum);
+          }
+        }
+      }
+      subtable += length;
+    }
+    return result;
+  }
+
+  private static int u16(ByteBuffer data, int offset) {
+    return data.getShort(offset) & 0xFFFF;
+  }
+
+  private static int tag(String tag) {
+    return (
+      tag.charAt(0) << 24 | tag.charAt(1) << 16 | tag.charAt(2) << 8 | tag.charAt(3)
+    );
+  }
+}
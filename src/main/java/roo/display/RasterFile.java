@@ -0,0 +1,66 @@
+package roo.display;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Temporary file that glyph rasters get moved to as they are imported (see
+// RooDisplayFont.Glyph.storeRaster()), so that the heap does not need to hold
+// the rasters of all the glyphs of a font at once. Rasters are appended while
+// the font gets imported; the file is then memory-mapped, and the rasters are
+// read back from the mapping as the glyphs get encoded. The file is deleted
+// once mapped; the mapping stays valid until it is garbage collected.
+class RasterFile implements RooDisplayFont.RasterStore {
+
+  private final FileChannel channel;
+  private long size = 0;
+  private volatile ByteBuffer data = null; // Set by map().
+
+  RasterFile() throws IOException {
+    Path path = Files.createTempFile("rasters", ".tmp");
+    channel = FileChannel.open(
+      path,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE,
+      StandardOpenOption.DELETE_ON_CLOSE
+    );
+  }
+
+  // Appends the raster, and returns its offset. Safe to call from multiple
+  // threads.
+  synchronized long append(byte[] raster) throws IOException {
+    long offset = size;
+    ByteBuffer src = ByteBuffer.wrap(raster);
+    while (src.hasRemaining()) {
+      channel.write(src, offset + src.position());
+    }
+    size += raster.length;
+    return offset;
+  }
+
+  // Maps the rasters appended so far, and deletes the file. No more rasters
+  // can be appended.
+  synchronized void map() throws IOException {
+    try {
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Too many glyph rasters to map: " + size + " bytes");
+      }
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Override
+  public byte[] read(long offset, int length) {
+    if (data == null) {
+      throw new IllegalStateException("The raster file has not been mapped");
+    }
+    byte[] raster = new byte[length];
+    data.duplicate().position((int) offset).get(raster);
+    return raster;
+  }
+}
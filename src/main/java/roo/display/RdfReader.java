@@ -0,0 +1,216 @@
+package roo.display;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Reads the binary .rdf files written by RdfWriter, and checks them against
+// the font data in the C++ sources. The file is memory-mapped, and its font
+// data is split into the fields of the font format (see
+// FontEncoder.writeDefinition()), so that a mismatch can be reported in terms
+// of the field that differs.
+class RdfReader {
+
+  // A named range of the font data.
+  static class Field {
+    final String name;
+    final int offset;
+    final int length;
+
+    Field(String name, int offset, int length) {
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final ByteBuffer data;
+
+  // Maps the file, and validates its header and checksum.
+  RdfReader(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < RdfWriter.HEADER_SIZE) {
+        throw new IOException(file + ": too short for an .rdf file");
+      }
+      ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (mapped.getInt(0) != RdfWriter.MAGIC) {
+        throw new IOException(file + ": not an .rdf file");
+      }
+      long size = mapped.getInt(4) & 0xFFFFFFFFL;
+      if (size != channel.size() - RdfWriter.HEADER_SIZE) {
+        throw new IOException(
+            file + ": font data is " + (channel.size() - RdfWriter.HEADER_SIZE) + " bytes; expected " + size);
+      }
+      mapped.position(RdfWriter.HEADER_SIZE);
+      data = mapped.slice();
+      CRC32 crc = new CRC32();
+      crc.update(data.duplicate());
+      if ((int) crc.getValue() != mapped.getInt(8)) {
+        throw new IOException(file + ": checksum mismatch");
+      }
+    }
+  }
+
+  // The font data (read-only).
+  ByteBuffer getData() {
+    return data.asReadOnlyBuffer();
+  }
+
+  // Splits the font data into its fields, checking that they add up to its
+  // size, and that the glyph offsets point within the glyph data.
+  List<Field> parse() {
+    List<Field> fields = new ArrayList<>();
+    int pos = 0;
+    int version = u16(pos);
+    int cpBytes = u8(pos + 3);
+    int metricBytes = u8(pos + 4);
+    int offsetBytes = u8(pos + 5);
+    boolean adaptive = u8(pos + 6) == 2;
+    int glyphCount = u16(pos + 7);
+    int kerningCount = u16(pos + 9);
+    pos = add(fields, "header", pos, 11 + 11 * metricBytes + cpBytes);
+
+    int metricsStart = pos;
+    int metricsSize = cpBytes + 5 * metricBytes + offsetBytes;
+    for (int i = 0; i < glyphCount; ++i) {
+      pos = add(fields, String.format("metrics of U+%04X", codepoint(pos, cpBytes)), pos, metricsSize);
+    }
+
+    boolean flatKerning = true;
+    if (kerningCount > 0) {
+      int format = 0;
+      if (version >= 0x0103) {
+        format = u8(pos);
+        pos = add(fields, "kerning format", pos, 1);
+      }
+      if (format == 0) {
+        pos = add(fields, "kerning pairs", pos, kerningCount * (2 * cpBytes + 1));
+      } else {
+        flatKerning = false;
+        int leftClasses = u16(pos);
+        int rightClasses = u16(pos + 2);
+        int classBytes = Math.max(leftClasses, rightClasses) < 256 ? 1 : 2;
+        pos = add(fields, "kerning class counts", pos, 4);
+        pos = add(fields, "kerning class map", pos, 2 * classBytes * glyphCount);
+        if (format == 1) {
+          pos = add(fields, "kerning class matrix", pos, leftClasses * rightClasses);
+        } else if (format == 2) {
+          int entries = u16(pos + 2 * leftClasses);
+          pos = add(fields, "kerning class offsets", pos, 2 * (leftClasses + 1));
+          pos = add(fields, "kerning class entries", pos, entries * (classBytes + 1));
+        } else {
+          throw new IllegalStateException("Unknown kerning format: " + format);
+        }
+      }
+    }
+
+    if (version >= 0x0104) {
+      int ranges = u16(pos);
+      pos = add(fields, "lookup ranges", pos, 2 + ranges * (2 * cpBytes + 2));
+      if (flatKerning && kerningCount > 0) {
+        pos = add(fields, "lookup kerning starts", pos, 2 * (glyphCount + 1));
+      }
+    }
+
+    int glyphDataSize = data.limit() - pos;
+    add(fields, "glyph data", pos, glyphDataSize);
+    int offsetMask = adaptive ? (1 << (8 * offsetBytes - 1)) - 1 : -1;
+    for (int i = 0; i < glyphCount; ++i) {
+      int entry = metricsStart + i * metricsSize;
+      int offset = uint(entry + metricsSize - offsetBytes, offsetBytes) & offsetMask;
+      if (offset >= glyphDataSize) {
+        throw new IllegalStateException(String.format("Offset of U+%04X outside the glyph data: %d >= %d",
+            codepoint(entry, cpBytes), offset, glyphDataSize));
+      }
+    }
+    return fields;
+  }
+
+  // Checks that the font data is identical to the data in the specified C++
+  // source, as written by FontWriter. Returns the number of fields compared.
+  int verify(File cppFile) throws IOException {
+    byte[] expected = parseCpp(cppFile);
+    List<Field> fields = parse();
+    for (Field field : fields) {
+      for (int i = 0; i < field.length; ++i) {
+        int pos = field.offset + i;
+        if (pos >= expected.length) {
+          throw new IllegalStateException(String.format(
+              "%s: %s is missing", cppFile, field.name));
+        }
+        if (data.get(pos) != expected[pos]) {
+          throw new IllegalStateException(String.format(
+              "%s: %s differs at byte %d (0x%02X vs 0x%02X)", cppFile, field.name, pos,
+              data.get(pos) & 0xFF, expected[pos] & 0xFF));
+        }
+      }
+    }
+    if (expected.length != data.limit()) {
+      throw new IllegalStateException(String.format(
+          "%s: %d bytes of font data, vs %d in the .rdf file", cppFile, expected.length, data.limit()));
+    }
+    return fields.size();
+  }
+
+  // Extracts the bytes of the font data array from the C++ source.
+  private static byte[] parseCpp(File cppFile) throws IOException {
+    String source = new String(Files.readAllBytes(cppFile.toPath()), StandardCharsets.UTF_8);
+    int start = source.indexOf("PROGMEM = {");
+    // Comments may contain "};" too, but only the end of the array starts a line.
+    int end = source.indexOf("\n};", start);
+    if (start < 0 || end < 0) {
+      throw new IOException(cppFile + ": font data not found");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (String line : source.substring(start + "PROGMEM = {".length(), end).split("\n")) {
+      int comment = line.indexOf("//");
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      for (String token : line.split(",")) {
+        token = token.trim();
+        if (!token.isEmpty()) {
+          bytes.write(Integer.decode(token));
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private int add(List<Field> fields, String name, int offset, int length) {
+    if (offset + length > data.limit()) {
+      throw new IllegalStateException(String.format(
+          "Truncated font data: %s needs %d bytes at %d, of %d", name, length, offset, data.limit()));
+    }
+    fields.add(new Field(name, offset, length));
+    return offset + length;
+  }
+
+  private int codepoint(int pos, int cpBytes) {
+    return uint(pos, cpBytes);
+  }
+
+  private int u8(int pos) {
+    return data.get(pos) & 0xFF;
+  }
+
+  private int u16(int pos) {
+    return data.getShort(pos) & 0xFFFF;
+  }
+
+  private int uint(int pos, int bytes) {
+    int result = 0;
+    for (int i = 0; i < bytes; ++i) {
+      result = (result << 8) | u8(pos + i);
+    }
+    return result;
+  }
+}
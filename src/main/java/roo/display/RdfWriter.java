@@ -0,0 +1,96 @@
+package roo.display;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import hexwriter.PayloadWriter;
+
+// Writes the font data to a binary .rdf file, that the device can keep on a
+// file system (e.g. SPIFFS, or an SD card), and map or stream at runtime. The
+// file consists of a small header, followed by the font data exactly as
+// written to the C++ sources:
+//
+//   magic: "RDF1" (4 bytes)
+//   size of the font data (4 bytes)
+//   CRC-32 of the font data (4 bytes)
+//
+// All values are big-endian, like the font data itself.
+class RdfWriter extends PayloadWriter implements Closeable {
+
+  static final int MAGIC = 0x52444631; // "RDF1"
+  static final int HEADER_SIZE = 12;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+  private final CRC32 crc = new CRC32();
+  private long size;
+
+  RdfWriter(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    // The header gets written once the size and the checksum are known.
+    channel.position(HEADER_SIZE);
+  }
+
+  @Override
+  protected void writeByte(int b) throws IOException {
+    if (!buffer.hasRemaining()) {
+      flush();
+    }
+    buffer.put((byte) b);
+  }
+
+  @Override
+  protected void writeBytes(byte[] bytes) throws IOException {
+    int pos = 0;
+    while (pos < bytes.length) {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+      int len = Math.min(bytes.length - pos, buffer.remaining());
+      buffer.put(bytes, pos, len);
+      pos += len;
+    }
+  }
+
+  // Size of the font data written so far.
+  long getSize() {
+    return size + buffer.position();
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    crc.update(buffer.array(), 0, buffer.limit());
+    size += buffer.limit();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  // Flushes the font data, and writes the header.
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+      if (size > 0xFFFFFFFFL) {
+        throw new IOException("Font data too large: " + size + " bytes");
+      }
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC);
+      header.putInt((int) size);
+      header.putInt((int) crc.getValue());
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+    } finally {
+      channel.close();
+    }
+  }
+}
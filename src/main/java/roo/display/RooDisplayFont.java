@@ -4,14 +4,26 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class RooDisplayFont {
 
@@ -21,7 +33,7 @@ class RooDisplayFont {
   }
 
   enum AlphaBits {
-    ONE(0), // No antialiasing
+    ONE(1), // No antialiasing
     TWO(2), // 4 shades (2 intermediate alpha shades)
     FOUR(4), // 16 shades (14 intermediate alpha shades)
     EIGHT(8); // 256 shades ( 254 intermediate alpha shades)
@@ -43,6 +55,21 @@ class RooDisplayFont {
     int shades() {
       return 1 << bits();
     }
+
+    // Quantizes an 8-bit alpha value to this resolution.
+    int quantize(int alpha) {
+      switch (this) {
+        case ONE:
+          // Set if at least half covered.
+          return alpha >> 7;
+        case EIGHT:
+          return alpha;
+        default:
+          // As PlainAlpha4Encoder does for 4 bits: scales 0xFF down to the
+          // maximum value, and then truncates.
+          return (alpha - (alpha >> (bits() + 1))) >> (8 - bits());
+      }
+    }
   }
 
   enum MaxFontSize {
@@ -50,25 +77,215 @@ class RooDisplayFont {
     DOUBLE, // hax height: 65536
   }
 
-  public static class CodePointPair {
+  // A list of code point pairs, each packed into a single long as
+  // (left << 32 | right). Stays compact even for millions of pairs.
+  public static class CodePointPairs {
+
+    private long[] pairs;
+    private int size;
+
+    CodePointPairs() {
+      this(16);
+    }
+
+    CodePointPairs(int capacity) {
+      this.pairs = new long[Math.max(1, capacity)];
+      this.size = 0;
+    }
+
+    CodePointPairs(CodePointPairs other) {
+      this.pairs = Arrays.copyOf(other.pairs, Math.max(1, other.size));
+      this.size = other.size;
+    }
+
+    static long pack(int left, int right) {
+      return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    static int left(long pair) {
+      return (int) (pair >>> 32);
+    }
+
+    static int right(long pair) {
+      return (int) pair;
+    }
+
+    public void add(int left, int right) {
+      if (size == pairs.length) {
+        pairs = Arrays.copyOf(pairs, 2 * size);
+      }
+      pairs[size++] = pack(left, right);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public boolean isEmpty() {
+      return size == 0;
+    }
+
+    public long get(int idx) {
+      return pairs[idx];
+    }
 
-    public final int left;
-    public final int right;
+    public int getLeft(int idx) {
+      return left(pairs[idx]);
+    }
 
-    CodePointPair(int left, int right) {
-      this.left = left;
-      this.right = right;
+    public int getRight(int idx) {
+      return right(pairs[idx]);
+    }
+
+    // Sorts the pairs by (left, right), and removes duplicates.
+    public void sort() {
+      Arrays.sort(pairs, 0, size);
+      int newSize = 0;
+      for (int i = 0; i < size; ++i) {
+        if (newSize == 0 || pairs[newSize - 1] != pairs[i]) {
+          pairs[newSize++] = pairs[i];
+        }
+      }
+      size = newSize;
+    }
+
+    // Returns the index of the pair, or a negative value if absent. Requires
+    // the pairs to be sorted.
+    public int indexOf(int left, int right) {
+      return Arrays.binarySearch(pairs, 0, size, pack(left, right));
     }
   }
 
-  public static class KerningPair {
+  // Code point pairs with their kerning values, stored in parallel primitive
+  // arrays.
+  public static class KerningPairs {
+
+    private final CodePointPairs codePoints = new CodePointPairs();
+    private int[] kerns = new int[16];
+
+    public void add(int left, int right, int kern) {
+      int idx = codePoints.size();
+      codePoints.add(left, right);
+      if (idx == kerns.length) {
+        kerns = Arrays.copyOf(kerns, 2 * idx);
+      }
+      kerns[idx] = kern;
+    }
+
+    public int size() {
+      return codePoints.size();
+    }
+
+    public boolean isEmpty() {
+      return codePoints.isEmpty();
+    }
+
+    public int getLeft(int idx) {
+      return codePoints.getLeft(idx);
+    }
+
+    public int getRight(int idx) {
+      return codePoints.getRight(idx);
+    }
+
+    public int getKern(int idx) {
+      return kerns[idx];
+    }
+
+    // Sorts the pairs by (left, right). Duplicate pairs are collapsed, keeping
+    // the kern that has been added last.
+    public void sort() {
+      long[] original = Arrays.copyOf(codePoints.pairs, codePoints.size);
+      codePoints.sort();
+      int[] sortedKerns = new int[Math.max(1, codePoints.size())];
+      for (int i = 0; i < original.length; ++i) {
+        sortedKerns[Arrays.binarySearch(
+            codePoints.pairs,
+            0,
+            codePoints.size,
+            original[i]
+          )] =
+          kerns[i];
+      }
+      kerns = sortedKerns;
+    }
+
+    // Returns the index of the pair, or a negative value if absent. Requires
+    // the pairs to be sorted.
+    public int indexOf(int left, int right) {
+      return codePoints.indexOf(left, right);
+    }
+
+    // Returns a copy of the code point pairs, e.g. to be used as the candidate
+    // super-set for other sizes.
+    public CodePointPairs getCodePointPairs() {
+      return new CodePointPairs(codePoints);
+    }
+  }
+
+  // Kerning that does not depend on the font size: code point pairs with
+  // values expressed as a fraction of the font size (i.e. in ems). Positive
+  // values bring the glyphs closer together. Computed once per font, and then
+  // scaled to every size (see applyKerning()).
+  public static class ScalableKerning {
+
+    private final CodePointPairs codePoints = new CodePointPairs();
+    private double[] values = new double[16];
+
+    public void add(int left, int right, double value) {
+      int idx = codePoints.size();
+      codePoints.add(left, right);
+      if (idx == values.length) {
+        values = Arrays.copyOf(values, 2 * idx);
+      }
+      values[idx] = value;
+    }
+
+    public int size() {
+      return codePoints.size();
+    }
+
+    public int getLeft(int idx) {
+      return codePoints.getLeft(idx);
+    }
+
+    public int getRight(int idx) {
+      return codePoints.getRight(idx);
+    }
 
-    public final CodePointPair codePoints;
-    public final int kern;
+    public double getValue(int idx) {
+      return values[idx];
+    }
 
-    KerningPair(CodePointPair codePoints, int kern) {
-      this.codePoints = codePoints;
-      this.kern = kern;
+    // Reads the kerning between all pairs of code points of the charset from
+    // the font's OpenType tables. Pairs are listed in the charset order.
+    public static ScalableKerning fromTables(
+      OpenTypeKerning tables,
+      char charset[]
+    ) {
+      // Distinct code points known to the font, in the order of appearance.
+      BitSet seen = new BitSet();
+      int count = 0;
+      int[] codepoints = new int[charset.length];
+      for (char c : charset) {
+        if (tables.getGlyphId(c) == 0 || seen.get(c)) {
+          continue;
+        }
+        seen.set(c);
+        codepoints[count] = c;
+        ++count;
+      }
+      ScalableKerning result = new ScalableKerning();
+      double unitsPerEm = tables.getUnitsPerEm();
+      for (int i = 0; i < count; ++i) {
+        for (int j = 0; j < count; ++j) {
+          int adjustment = tables.getAdjustment(codepoints[i], codepoints[j]);
+          if (adjustment < 0) {
+            result.add(codepoints[i], codepoints[j], -adjustment / unitsPerEm);
+          }
+        }
+      }
+      return result;
     }
   }
 
@@ -119,12 +336,21 @@ class RooDisplayFont {
     }
   }
 
+  // Storage that glyph rasters can be read back from, so that they need not
+  // be held in memory (e.g. a RasterFile, or a GlyphCache.Sheet).
+  interface RasterStore {
+    // Returns a copy of the length bytes at the offset.
+    byte[] read(long offset, int length);
+  }
+
   public static class Glyph {
 
     private final BoundingBox bbox;
     private final int codepoint;
     private final int advance;
-    private final byte[] raster; // 256-level grayscale.
+    private byte[] raster; // 256-level grayscale; null if stored, or released.
+    private RasterStore store; // Holds the raster when it is not in memory.
+    private long storeOffset;
 
     public Glyph(BoundingBox bbox, int codepoint, int advance, byte[] raster) {
       this.bbox = bbox;
@@ -133,6 +359,19 @@ class RooDisplayFont {
       this.raster = raster;
     }
 
+    // As above, but with the raster at the specified offset of the store.
+    Glyph(
+      BoundingBox bbox,
+      int codepoint,
+      int advance,
+      RasterStore store,
+      long storeOffset
+    ) {
+      this(bbox, codepoint, advance, null);
+      this.store = store;
+      this.storeOffset = storeOffset;
+    }
+
     public final BoundingBox getBoundingBox() {
       return bbox;
     }
@@ -145,75 +384,236 @@ class RooDisplayFont {
       return codepoint;
     }
 
+    // Returns the raw raster: 256-level grayscale, row by row. A stored
+    // raster gets read back on every call.
+    byte[] getRaster() {
+      if (raster != null) {
+        return raster;
+      }
+      if (store == null) {
+        throw new IllegalStateException(
+          String.format("The raster of U+%04X has been released", codepoint)
+        );
+      }
+      int size = bbox.isEmpty() ? 0 : bbox.getWidth() * bbox.getHeight();
+      return store.read(storeOffset, size);
+    }
+
+    // Moves the raster out of memory, into the raster file.
+    void storeRaster(RasterFile file) throws IOException {
+      storeOffset = file.append(getRaster());
+      store = file;
+      raster = null;
+    }
+
+    // Whether the raster is held in memory (rather than stored, or released).
+    boolean hasRaster() {
+      return raster != null;
+    }
+
+    // Drops the raster, once it is no longer needed (e.g. the glyph has been
+    // written out), so that it can be garbage collected even though the glyph
+    // is still referenced. The glyph can't be encoded any more.
+    void releaseRaster() {
+      raster = null;
+      store = null;
+    }
+
     // Returns a value in Alpha8(Black).
     public int getPixelColor(int x, int y) {
-      return raster[x + y * bbox.getWidth()] << 24;
+      return getRaster()[x + y * bbox.getWidth()] << 24;
     }
 
-    // Checks if the specified row is entirely empty (white) at the specified
-    // bit resolution.
+    // Returns the glyph trimmed to the ink that is visible at the specified
+    // alpha resolution (which is how it would have been imported at that
+    // resolution), or this glyph if there is nothing to trim. The raster is
+    // 8-bit either way. Trimming to a higher resolution than the glyph has
+    // been imported at does not bring back the trimmed ink.
+    Glyph trim(AlphaBits bits) {
+      byte[] raster = getRaster();
+      int threshold = inkThreshold(bits);
+      int width = bbox.getWidth();
+      int height = bbox.getHeight();
+      int top = 0;
+      int bottom = height - 1;
+      int left = 0;
+      int right = width - 1;
+      while (
+        top <= bottom &&
+        isRasterRowEmpty(raster, width, bottom, left, right, threshold)
+      ) {
+        bottom--;
+      }
+      while (
+        top <= bottom &&
+        isRasterRowEmpty(raster, width, top, left, right, threshold)
+      ) {
+        top++;
+      }
+      while (
+        left <= right &&
+        isRasterColumnEmpty(raster, width, right, top, bottom, threshold)
+      ) {
+        right--;
+      }
+      while (
+        left <= right &&
+        isRasterColumnEmpty(raster, width, left, top, bottom, threshold)
+      ) {
+        left++;
+      }
+      if (
+        top == 0 && bottom == height - 1 && left == 0 && right == width - 1
+      ) {
+        return this;
+      }
+      if (top > bottom || left > right) {
+        BoundingBox empty = new BoundingBox(
+          bbox.xMin,
+          bbox.yMin,
+          bbox.xMin - 1,
+          bbox.yMin - 1
+        );
+        return new Glyph(empty, codepoint, advance, new byte[0]);
+      }
+      // Rows are stored from the top (yMax) down.
+      BoundingBox trimmed = new BoundingBox(
+        bbox.xMin + left,
+        bbox.yMax - bottom,
+        bbox.xMin + right,
+        bbox.yMax - top
+      );
+      int trimmedWidth = trimmed.getWidth();
+      byte[] trimmedRaster = new byte[trimmedWidth * trimmed.getHeight()];
+      for (int rowid = top; rowid <= bottom; ++rowid) {
+        System.arraycopy(
+          raster,
+          rowid * width + left,
+          trimmedRaster,
+          (rowid - top) * trimmedWidth,
+          trimmedWidth
+        );
+      }
+      return new Glyph(trimmed, codepoint, advance, trimmedRaster);
+    }
+
+    // As isRowEmpty() and isColumnEmpty() below, but for a glyph raster, where
+    // zero represents 'empty'.
+    private static boolean isRasterRowEmpty(
+      byte[] raster,
+      int width,
+      int rowid,
+      int left,
+      int right,
+      int threshold
+    ) {
+      int offset = rowid * width;
+      for (int i = offset + left; i <= offset + right; ++i) {
+        if ((raster[i] & 0xFF) >= threshold) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isRasterColumnEmpty(
+      byte[] raster,
+      int width,
+      int colid,
+      int top,
+      int bottom,
+      int threshold
+    ) {
+      for (
+        int i = top * width + colid;
+        i <= bottom * width + colid;
+        i += width
+      ) {
+        if ((raster[i] & 0xFF) >= threshold) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Checks if the specified row of a grayscale image (given as its backing
+    // array), restricted to the columns [left, right], is entirely empty (white)
+    // at the resolution represented by the specified ink threshold (see
+    // inkThreshold()).
     private static boolean isRowEmpty(
-      BufferedImage img,
+      byte[] pixels,
+      int stride,
       int rowid,
-      AlphaBits bits
+      int left,
+      int right,
+      int threshold
     ) {
-      int w = img.getWidth();
-      for (int i = 0; i < w; ++i) {
-        int rgb = img.getRGB(i, rowid);
-        if (!isEmpty(rgb, bits)) {
+      int offset = rowid * stride;
+      for (int i = offset + left; i <= offset + right; ++i) {
+        if (0xFF - (pixels[i] & 0xFF) >= threshold) {
           return false;
         }
       }
       return true;
     }
 
-    // Checks if the specified column is entirely empty (white) at the specified
-    // bit resolution.
+    // Checks if the specified column of a grayscale image (given as its backing
+    // array), restricted to the rows [top, bottom], is entirely empty (white)
+    // at the resolution represented by the specified ink threshold (see
+    // inkThreshold()).
     private static boolean isColumnEmpty(
-      BufferedImage img,
+      byte[] pixels,
+      int stride,
       int colid,
-      AlphaBits bits
+      int top,
+      int bottom,
+      int threshold
     ) {
-      int h = img.getHeight();
-      for (int i = 0; i < h; ++i) {
-        int rgb = img.getRGB(colid, i);
-        if (!isEmpty(rgb, bits)) {
+      for (
+        int i = top * stride + colid;
+        i <= bottom * stride + colid;
+        i += stride
+      ) {
+        if (0xFF - (pixels[i] & 0xFF) >= threshold) {
           return false;
         }
       }
       return true;
     }
 
-    // Checks if the specified argb pixel is entirely empty (white) at the specified
-    // bit resolution.
+    // Returns the smallest (inverted, so that zero represents 'empty') 8-bit
+    // pixel value that is not considered empty at the specified bit resolution.
+    // Emptiness is monotonic in the pixel value, so the scans above can simply
+    // compare against this threshold instead of re-evaluating isEmpty() on
+    // every pixel.
+    private static int inkThreshold(AlphaBits bits) {
+      int threshold = 0;
+      while (threshold < 0xFF && isEmpty(0xFF - threshold, bits)) {
+        threshold++;
+      }
+      return threshold;
+    }
+
+    // Checks if the specified argb (or 8-bit gray) pixel is entirely empty (white)
+    // at the specified bit resolution.
     private static boolean isEmpty(int rgb, AlphaBits bits) {
       // We expect grayscale, so just taking one component (B) and inverting it so
       // that zero represents 'empty'.
       int pixel = 0xFF - (rgb & 0xFF);
-      switch (bits) {
-        case FOUR:
-          {
-            // Rounds the color to the nearest 4-bit representation.
-            return (byte) ((pixel - (pixel >> 5)) >> 4) == 0;
-          }
-        case EIGHT:
-          {
-            return pixel == 0;
-          }
-        default:
-          {
-            throw new IllegalArgumentException(
-              "Not currently supported: " + bits
-            );
-          }
-      }
+      return bits.quantize(pixel) == 0;
     }
   }
 
   public static class GlyphImporter {
 
+    // Margin added around the pixel bounds reported by the glyph vector, to
+    // account for antialiasing and hinting differences when actually drawing.
+    private static final int RENDER_REGION_PADDING = 2;
+
     private Font font;
     private BufferedImage img;
+    private byte[] pixels; // Backing array of img; 8-bit gray.
+    private int stride;
     private Graphics2D graphics;
     private FontMetrics metrics;
     private FontRenderContext cxt = new FontRenderContext(
@@ -228,7 +628,10 @@ class RooDisplayFont {
       int imgWidth = fontSize * 5;
       int imgHeight = fontSize * 5;
       this.img =
-        new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
+        new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_BYTE_GRAY);
+      this.pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+      this.stride =
+        ((ComponentSampleModel) img.getSampleModel()).getScanlineStride();
       this.graphics = img.createGraphics();
       graphics.setRenderingHint(
         RenderingHints.KEY_ANTIALIASING,
@@ -251,27 +654,30 @@ class RooDisplayFont {
     Glyph importGlyph(char c, AlphaBits bits) {
       int xOffset = font.getSize() * 2;
       int yOffset = font.getSize() * 2;
-      graphics.clearRect(0, 0, img.getWidth(), img.getHeight());
-      graphics.drawString(String.valueOf(c), xOffset, yOffset);
+      String text = String.valueOf(c);
+      int threshold = Glyph.inkThreshold(bits);
 
-      // Find margins to cut.
-      int left = 0;
-      int top = 0;
-      int right = img.getWidth() - 1;
-      int bottom = img.getHeight() - 1;
-      while (top <= bottom && Glyph.isRowEmpty(img, bottom, bits)) {
-        bottom--;
-      }
-      while (top <= bottom && Glyph.isRowEmpty(img, top, bits)) {
-        top++;
-      }
-      while (left <= right && Glyph.isColumnEmpty(img, right, bits)) {
-        right--;
+      // Only clear and scan the region in which the glyph is expected to render.
+      // If the ink reaches the edge of that region, the expected bounds were off,
+      // so we redo the work on the entire canvas.
+      Rectangle canvas = new Rectangle(0, 0, img.getWidth(), img.getHeight());
+      Rectangle region = getRenderRegion(text, xOffset, yOffset, canvas);
+      Rectangle ink = render(text, xOffset, yOffset, region, threshold);
+      if (
+        ink != null && !region.equals(canvas) && touchesBorder(ink, region)
+      ) {
+        ink = render(text, xOffset, yOffset, canvas, threshold);
       }
-      while (left <= right && Glyph.isColumnEmpty(img, left, bits)) {
-        left++;
-      }
-      if (top > bottom || left > right) {
+      int left;
+      int top;
+      int right;
+      int bottom;
+      if (ink != null) {
+        top = ink.y;
+        bottom = ink.y + ink.height - 1;
+        left = ink.x;
+        right = ink.x + ink.width - 1;
+      } else {
         top = yOffset;
         bottom = yOffset - 1;
         left = xOffset;
@@ -287,9 +693,9 @@ class RooDisplayFont {
       byte[] raster = new byte[bbox.getWidth() * bbox.getHeight()];
       int dstoffset = 0;
       for (int rowid = top; rowid <= bottom; ++rowid) {
+        int srcoffset = rowid * stride;
         for (int colid = left; colid <= right; ++colid) {
-          int rgb = img.getRGB(colid, rowid);
-          raster[dstoffset++] = (byte) ((~rgb >> 8) & 0xFF);
+          raster[dstoffset++] = (byte) ~pixels[srcoffset + colid];
         }
       }
       // An attempt to correct advance fonts that are poorly fit to fixed-point
@@ -310,6 +716,84 @@ class RooDisplayFont {
 
       return new Glyph(bbox, (int) c, advance1, raster);
     }
+
+    // Returns the (padded) pixel bounds of the text drawn at the specified
+    // position, or the entire canvas if the bounds look unreliable.
+    private Rectangle getRenderRegion(
+      String text,
+      int xOffset,
+      int yOffset,
+      Rectangle canvas
+    ) {
+      FontRenderContext renderContext = graphics.getFontRenderContext();
+      Rectangle bounds = font
+        .createGlyphVector(renderContext, text)
+        .getPixelBounds(renderContext, xOffset, yOffset);
+      if (bounds.isEmpty()) {
+        return canvas;
+      }
+      bounds.grow(RENDER_REGION_PADDING, RENDER_REGION_PADDING);
+      if (!canvas.contains(bounds)) {
+        return canvas;
+      }
+      return bounds;
+    }
+
+    // Clears the specified region of the canvas, draws the text, and returns
+    // the bounds of its ink within that region, or null if there is no ink.
+    // Rows are trimmed first, so that columns only need to be scanned within
+    // the remaining rows.
+    private Rectangle render(
+      String text,
+      int xOffset,
+      int yOffset,
+      Rectangle region,
+      int threshold
+    ) {
+      graphics.clearRect(region.x, region.y, region.width, region.height);
+      graphics.drawString(text, xOffset, yOffset);
+      int left = region.x;
+      int top = region.y;
+      int right = region.x + region.width - 1;
+      int bottom = region.y + region.height - 1;
+      while (
+        top <= bottom &&
+        Glyph.isRowEmpty(pixels, stride, bottom, left, right, threshold)
+      ) {
+        bottom--;
+      }
+      while (
+        top <= bottom &&
+        Glyph.isRowEmpty(pixels, stride, top, left, right, threshold)
+      ) {
+        top++;
+      }
+      while (
+        left <= right &&
+        Glyph.isColumnEmpty(pixels, stride, right, top, bottom, threshold)
+      ) {
+        right--;
+      }
+      while (
+        left <= right &&
+        Glyph.isColumnEmpty(pixels, stride, left, top, bottom, threshold)
+      ) {
+        left++;
+      }
+      if (top > bottom || left > right) {
+        return null;
+      }
+      return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    private static boolean touchesBorder(Rectangle ink, Rectangle region) {
+      return (
+        ink.x == region.x ||
+        ink.y == region.y ||
+        ink.x + ink.width == region.x + region.width ||
+        ink.y + ink.height == region.y + region.height
+      );
+    }
   }
 
   // Fields of RooDisplayFont.
@@ -317,16 +801,54 @@ class RooDisplayFont {
   Font font;
   List<Glyph> glyphs = new ArrayList<>();
   Map<Integer, Glyph> glyphIdx = new HashMap<>();
-  List<KerningPair> kerningPairs = new ArrayList<KerningPair>();
-  final AlphaBits alphaBits = AlphaBits.FOUR;
+  KerningPairs kerningPairs = new KerningPairs();
+  final AlphaBits alphaBits;
   final Charset charset;
   int ascent;
   int descent;
+  FontEncoder.LengthCache lengthCache; // See getLengthCache().
 
   // Creates and initialized the RooDisplayFont, given the specified font and the
   // charset.
   public RooDisplayFont(Font font, boolean smooth, char charset[]) {
+    this(font, smooth, charset, null, 1);
+  }
+
+  // As above, but rasterizes the glyphs using up to the specified number of
+  // workers, submitted to the specified executor. Each worker uses its own
+  // GlyphImporter (and thus its own canvas). The result does not depend on the
+  // number of workers: glyphs are always stored by code point.
+  public RooDisplayFont(Font font, boolean smooth, char charset[],
+      ExecutorService executor, int workers) {
+    this(font, smooth, charset, AlphaBits.FOUR, executor, workers, null);
+  }
+
+  // As above, but with the specified alpha resolution (which determines how
+  // the glyphs are trimmed). Takes glyphs from the cache when available, and
+  // adds the newly rasterized ones to it. Saving the cache is up to the caller.
+  public RooDisplayFont(Font font, boolean smooth, char charset[],
+      AlphaBits alphaBits, ExecutorService executor, int workers,
+      GlyphCache.Sheet cache) {
+    this(font, smooth, charset, alphaBits, executor, workers, cache, false);
+  }
+
+  // As above, but if storeRasters is set, records the encoded lengths of each
+  // glyph as soon as it is imported (see getLengthCache()), and moves its
+  // raster out of memory (see Glyph.storeRaster()), to be read back when the
+  // glyph data gets written. This way, the memory needed to import and write
+  // the font does not grow with the glyph count.
+  public RooDisplayFont(
+    Font font,
+    boolean smooth,
+    char charset[],
+    AlphaBits alphaBits,
+    ExecutorService executor,
+    int workers,
+    GlyphCache.Sheet cache,
+    boolean storeRasters
+  ) {
     this.font = font;
+    this.alphaBits = alphaBits;
     // Determine charset.
     boolean hasNonAscii = false;
     for (int i = 0; i < charset.length; ++i) {
@@ -337,24 +859,87 @@ class RooDisplayFont {
     }
     this.charset = hasNonAscii ? Charset.UTF8 : Charset.ASCII;
 
-    GlyphImporter glyphImporter = new GlyphImporter(font);
-
-    for (int i = 0; i < charset.length; i++) {
-      char c = charset[i];
-      if (isWhitespace(c)) {
-        continue;
+    Glyph[] imported = new Glyph[charset.length];
+    RasterFile rasterFile = null;
+    if (storeRasters) {
+      lengthCache = new FontEncoder.LengthCache();
+      try {
+        rasterFile = new RasterFile();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
-      if (!font.canDisplay(c)) {
+    }
+    if (executor == null || workers <= 1) {
+      importGlyphs(charset, imported, new AtomicInteger(), cache, rasterFile);
+    } else {
+      importGlyphsInParallel(
+        charset,
+        imported,
+        executor,
+        workers,
+        cache,
+        rasterFile
+      );
+    }
+    if (rasterFile != null) {
+      try {
+        rasterFile.map();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    for (Glyph g : imported) {
+      if (
+        g == null ||
+        g.getBoundingBox().isEmpty() ||
+        glyphIdx.containsKey(g.getCodePoint())
+      ) {
         continue;
       }
-      Glyph g = glyphImporter.importGlyph(c, alphaBits);
+      glyphs.add(g);
+      glyphIdx.put(g.getCodePoint(), g);
+    }
+    // Sorted by code point regardless of the charset order, so that the
+    // glyphs can be looked up by binary search (or a lookup index).
+    glyphs.sort(Comparator.comparingInt(Glyph::getCodePoint));
+    computeAscentAndDescent();
+  }
+
+  // Creates a font of the specified glyphs, which have been imported for
+  // another font (e.g. at another alpha resolution, see Glyph.trim()), with
+  // the kerning pairs of that font that concern these glyphs. The glyphs must
+  // be sorted by code point.
+  RooDisplayFont(
+    RooDisplayFont source,
+    AlphaBits alphaBits,
+    Charset charset,
+    List<Glyph> glyphs
+  ) {
+    this.font = source.font;
+    this.alphaBits = alphaBits;
+    this.charset = charset;
+    for (Glyph g : glyphs) {
       if (g.getBoundingBox().isEmpty()) {
         continue;
       }
-      glyphs.add(g);
-      glyphIdx.put((int) c, g);
+      this.glyphs.add(g);
+      glyphIdx.put(g.getCodePoint(), g);
     }
-    // Determine ascent and descent.
+    KerningPairs pairs = source.getKerningPairs();
+    for (int i = 0; i < pairs.size(); ++i) {
+      if (
+        glyphIdx.containsKey(pairs.getLeft(i)) &&
+        glyphIdx.containsKey(pairs.getRight(i))
+      ) {
+        kerningPairs.add(pairs.getLeft(i), pairs.getRight(i), pairs.getKern(i));
+      }
+    }
+    kerningPairs.sort();
+    computeAscentAndDescent();
+  }
+
+  // Determines the ascent and the descent from the glyphs.
+  private void computeAscentAndDescent() {
     Glyph d = getGlyphForCodepoint((int) 'd');
     if (d != null) {
       ascent = d.getBoundingBox().yMax;
@@ -371,10 +956,108 @@ class RooDisplayFont {
     }
   }
 
+  // Imports glyphs for the charset positions claimed from the shared cursor,
+  // until the charset is exhausted. Positions that do not yield a glyph are
+  // left null. The canvas is only allocated once a glyph misses the cache.
+  // With a raster file, the encoded lengths of each glyph are recorded, and
+  // the rasters of the newly rasterized glyphs are moved to the file (cached
+  // glyphs already read their raster from the cache file).
+  private void importGlyphs(
+    char charset[],
+    Glyph[] imported,
+    AtomicInteger cursor,
+    GlyphCache.Sheet cache,
+    RasterFile rasterFile
+  ) {
+    GlyphImporter glyphImporter = null;
+    FontEncoder.GlyphEncoder plainEncoder = null;
+    FontEncoder.GlyphEncoder rleEncoder = null;
+    FontEncoder.GlyphBuffer buffer = null;
+    if (rasterFile != null) {
+      plainEncoder = new FontEncoder.GlyphEncoder(alphaBits, false);
+      if (FontEncoder.GlyphEncoder.supportsRle(alphaBits)) {
+        rleEncoder = new FontEncoder.GlyphEncoder(alphaBits, true);
+      }
+      buffer = new FontEncoder.GlyphBuffer();
+    }
+    int i;
+    while ((i = cursor.getAndIncrement()) < charset.length) {
+      char c = charset[i];
+      if (isWhitespace(c)) {
+        continue;
+      }
+      if (!font.canDisplay(c)) {
+        continue;
+      }
+      Glyph glyph = cache == null ? null : cache.get(c);
+      if (glyph == null) {
+        if (glyphImporter == null) {
+          glyphImporter = new GlyphImporter(font);
+        }
+        glyph = glyphImporter.importGlyph(c, alphaBits);
+        if (cache != null) {
+          cache.put(glyph);
+        }
+      }
+      if (rasterFile != null) {
+        lengthCache.get(plainEncoder, glyph, buffer);
+        if (rleEncoder != null) {
+          lengthCache.get(rleEncoder, glyph, buffer);
+        }
+        if (glyph.hasRaster()) {
+          try {
+            glyph.storeRaster(rasterFile);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      }
+      imported[i] = glyph;
+    }
+  }
+
+  private void importGlyphsInParallel(
+    char charset[],
+    Glyph[] imported,
+    ExecutorService executor,
+    int workers,
+    GlyphCache.Sheet cache,
+    RasterFile rasterFile
+  ) {
+    AtomicInteger cursor = new AtomicInteger();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < Math.min(workers, charset.length); ++i) {
+      futures.add(
+        executor.submit(() ->
+          importGlyphs(charset, imported, cursor, cache, rasterFile)
+        )
+      );
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(
+          "Failed to import glyphs of " + font.getPSName(),
+          e.getCause()
+        );
+      }
+    }
+  }
+
   public Font getFont() {
     return font;
   }
 
+  // The encoded lengths of the glyphs, recorded as they got imported with
+  // storeRasters; null otherwise.
+  FontEncoder.LengthCache getLengthCache() {
+    return lengthCache;
+  }
+
   public int getGlyphCount() {
     return glyphs.size();
   }
@@ -389,48 +1072,114 @@ class RooDisplayFont {
 
   // To minimize the need for quadratic complexity, you can provide candidate
   // super-set (e.g. coming from rendering the same font of larger size earlier).
-  public void generateKerningPairs(List<CodePointPair> candidates) {
-    kerningPairs.clear();
+  // Without candidates, all pairs of glyphs are probed.
+  public void generateKerningPairs(CodePointPairs candidates) {
+    kerningPairs = new KerningPairs();
+    KerningProbe probe = new KerningProbe(false);
     if (candidates == null) {
-      candidates = new ArrayList<>();
       for (int i = 0; i < getGlyphCount(); ++i) {
         Glyph g1 = getGlyphAtIndex(i);
         for (int j = 0; j < getGlyphCount(); ++j) {
-          Glyph g2 = getGlyphAtIndex(j);
-          candidates.add(
-            new CodePointPair(g1.getCodePoint(), g2.getCodePoint())
-          );
+          addKerningPair(probe, g1, getGlyphAtIndex(j));
         }
       }
+    } else {
+      for (int i = 0; i < candidates.size(); ++i) {
+        addKerningPair(
+          probe,
+          getGlyphForCodepoint((char) candidates.getLeft(i)),
+          getGlyphForCodepoint((char) candidates.getRight(i))
+        );
+      }
     }
-    FontRenderContext cxt = new FontRenderContext(
-      null,
-      RenderingHints.VALUE_TEXT_ANTIALIAS_ON,
-      RenderingHints.VALUE_FRACTIONALMETRICS_OFF
-    );
-    char[] pair = new char[2];
-    Glyph g1 = null;
-    Glyph g2 = null;
-    Rectangle2D boundsLeft = null;
-    Rectangle2D boundsRight = null;
-    for (CodePointPair candidate : candidates) {
-      if (g1 == null || candidate.left != g1.getCodePoint()) {
-        g1 = getGlyphForCodepoint((char) candidate.left);
+    kerningPairs.sort();
+  }
+
+  private void addKerningPair(KerningProbe probe, Glyph g1, Glyph g2) {
+    int kerning = (int) Math.round(probe.measure(g1, g2));
+    if (kerning >= 1) {
+      kerningPairs.add(g1.getCodePoint(), g2.getCodePoint(), kerning);
+    }
+  }
+
+  // Probes all pairs of glyphs, using fractional metrics, and returns the
+  // kerning as a fraction of the size of this font. Only keeps pairs that kern
+  // by at least 1px at this size; use the largest size needed.
+  public ScalableKerning measureScalableKerning() {
+    ScalableKerning result = new ScalableKerning();
+    KerningProbe probe = new KerningProbe(true);
+    double size = font.getSize2D();
+    for (int i = 0; i < getGlyphCount(); ++i) {
+      Glyph g1 = getGlyphAtIndex(i);
+      for (int j = 0; j < getGlyphCount(); ++j) {
+        Glyph g2 = getGlyphAtIndex(j);
+        double kerning = probe.measure(g1, g2);
+        if (Math.round(kerning) >= 1) {
+          result.add(g1.getCodePoint(), g2.getCodePoint(), kerning / size);
+        }
+      }
+    }
+    return result;
+  }
+
+  // Sets the kerning pairs by scaling the size-independent kerning to the size
+  // of this font. Pairs with glyphs missing in this font are skipped, and only
+  // pairs that end up at least 1px tighter are kept.
+  public void applyKerning(ScalableKerning kerning) {
+    kerningPairs = new KerningPairs();
+    double size = font.getSize2D();
+    for (int i = 0; i < kerning.size(); ++i) {
+      int left = kerning.getLeft(i);
+      int right = kerning.getRight(i);
+      if (!glyphIdx.containsKey(left) || !glyphIdx.containsKey(right)) {
+        continue;
+      }
+      int kern = (int) Math.round(kerning.getValue(i) * size);
+      if (kern >= 1) {
+        kerningPairs.add(left, right, kern);
+      }
+    }
+    kerningPairs.sort();
+  }
+
+  // Measures the kerning of glyph pairs, caching the bounds of the individual
+  // glyphs between consecutive pairs that share them.
+  private class KerningProbe {
+
+    private final FontRenderContext cxt;
+    private final char[] pair = new char[2];
+    private Glyph g1 = null;
+    private Glyph g2 = null;
+    private Rectangle2D boundsLeft = null;
+    private Rectangle2D boundsRight = null;
+
+    KerningProbe(boolean fractionalMetrics) {
+      this.cxt =
+        new FontRenderContext(
+          null,
+          RenderingHints.VALUE_TEXT_ANTIALIAS_ON,
+          fractionalMetrics
+            ? RenderingHints.VALUE_FRACTIONALMETRICS_ON
+            : RenderingHints.VALUE_FRACTIONALMETRICS_OFF
+        );
+    }
+
+    // Returns the (unrounded) kerning of the pair in pixels.
+    double measure(Glyph left, Glyph right) {
+      if (g1 != left) {
+        g1 = left;
         pair[0] = (char) g1.getCodePoint();
         boundsLeft = font.getStringBounds(pair, 0, 1, cxt);
       }
-      if (g2 == null || candidate.right != g2.getCodePoint()) {
-        g2 = getGlyphForCodepoint((char) candidate.right);
+      if (g2 != right) {
+        g2 = right;
         pair[1] = (char) g2.getCodePoint();
         boundsRight = font.getStringBounds(pair, 1, 2, cxt);
       }
       Rectangle2D boundsPair = font.getStringBounds(pair, 0, 2, cxt);
-      int kerning = (int) Math.round(
+      return (
         boundsLeft.getWidth() + boundsRight.getWidth() - boundsPair.getWidth()
       );
-      if (kerning >= 1) {
-        kerningPairs.add(new KerningPair(candidate, kerning));
-      }
     }
   }
 
@@ -450,10 +1199,27 @@ class RooDisplayFont {
     return charset;
   }
 
-  public List<KerningPair> getKerningPairs() {
+  public KerningPairs getKerningPairs() {
     return kerningPairs;
   }
 
+  // Drops the kerning pairs that adjust the spacing by less than the specified
+  // number of pixels.
+  public void dropKerningPairs(int minKern) {
+    KerningPairs kept = new KerningPairs();
+    for (int i = 0; i < kerningPairs.size(); ++i) {
+      if (kerningPairs.getKern(i) >= minKern) {
+        kept.add(
+          kerningPairs.getLeft(i),
+          kerningPairs.getRight(i),
+          kerningPairs.getKern(i)
+        );
+      }
+    }
+    kept.sort();
+    kerningPairs = kept;
+  }
+
   public List<Glyph> getGlyphs() {
     return glyphs;
   }
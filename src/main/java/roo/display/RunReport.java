@@ -0,0 +1,299 @@
+package roo.display;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Timings of the phases of a run (per font, and per size), and size metrics of
+// the generated fonts. Written as JSON with FontImporter -report. Each phase
+// is also emitted as a JFR event (roo.display.Phase), and each generated size
+// as another (roo.display.FontSize), so that runs can be profiled with the
+// standard JDK tooling, e.g.:
+//
+//   java -XX:StartFlightRecording=filename=import.jfr ...
+//   jfr print --events roo.display.Phase import.jfr
+//
+// Safe to use from multiple threads.
+class RunReport {
+
+  private final List<FontEntry> fonts = new ArrayList<>();
+  private final long start = System.nanoTime();
+
+  // Adds a font to the report.
+  synchronized FontEntry addFont(String name) {
+    FontEntry font = new FontEntry(name);
+    fonts.add(font);
+    return font;
+  }
+
+  // A phase to be timed, that returns a result.
+  interface Task<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  // A phase to be timed, that returns nothing.
+  interface Action<E extends Exception> {
+    void run() throws E;
+  }
+
+  static class FontEntry {
+    private final String name;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final List<SizeEntry> sizes = new ArrayList<>();
+
+    private FontEntry(String name) {
+      this.name = name;
+    }
+
+    // Runs and times a phase that concerns the font as a whole.
+    <T, E extends Exception> T time(String phase, Task<T, E> task) throws E {
+      return RunReport.time(phases, name, 0, phase, task);
+    }
+
+    <E extends Exception> void time(String phase, Action<E> action) throws E {
+      RunReport.time(phases, name, 0, phase, () -> {
+        action.run();
+        return null;
+      });
+    }
+
+    // Records the duration of a phase timed elsewhere.
+    void addPhase(String phase, long nanos) {
+      RunReport.addPhase(phases, name, 0, phase, nanos);
+    }
+
+    synchronized SizeEntry addSize(int size) {
+      SizeEntry entry = new SizeEntry(name, size);
+      sizes.add(entry);
+      return entry;
+    }
+  }
+
+  static class SizeEntry {
+    private final String font;
+    private final int size;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private int glyphs;
+    private int kerningPairs;
+    private long rawGlyphBytes;
+    private long encodedGlyphBytes;
+    private long fontBytes;
+
+    private SizeEntry(String font, int size) {
+      this.font = font;
+      this.size = size;
+    }
+
+    // Runs and times a phase of generating this size.
+    <T, E extends Exception> T time(String phase, Task<T, E> task) throws E {
+      return RunReport.time(phases, font, size, phase, task);
+    }
+
+    <E extends Exception> void time(String phase, Action<E> action) throws E {
+      RunReport.time(phases, font, size, phase, () -> {
+        action.run();
+        return null;
+      });
+    }
+
+    // Records the duration of a phase timed elsewhere (e.g. by the encoder).
+    void addPhase(String phase, long nanos) {
+      RunReport.addPhase(phases, font, size, phase, nanos);
+    }
+
+    // Records the size metrics: glyph and kerning pair counts, the size of the
+    // glyph rasters (one byte per pixel), the size of the encoded glyph data,
+    // and the size of the whole font.
+    void setMetrics(int glyphs, int kerningPairs, long rawGlyphBytes, long encodedGlyphBytes,
+        long fontBytes) {
+      synchronized (this) {
+        this.glyphs = glyphs;
+        this.kerningPairs = kerningPairs;
+        this.rawGlyphBytes = rawGlyphBytes;
+        this.encodedGlyphBytes = encodedGlyphBytes;
+        this.fontBytes = fontBytes;
+      }
+      FontSizeEvent event = new FontSizeEvent();
+      event.font = font;
+      event.size = size;
+      event.glyphs = glyphs;
+      event.kerningPairs = kerningPairs;
+      event.rawGlyphBytes = rawGlyphBytes;
+      event.encodedGlyphBytes = encodedGlyphBytes;
+      event.fontBytes = fontBytes;
+      event.commit();
+    }
+  }
+
+  private static <T, E extends Exception> T time(Map<String, Long> phases, String font, int size,
+      String name, Task<T, E> task) throws E {
+    PhaseEvent event = new PhaseEvent();
+    event.font = font;
+    event.size = size;
+    event.phase = name;
+    event.begin();
+    long start = System.nanoTime();
+    try {
+      return task.run();
+    } finally {
+      long nanos = System.nanoTime() - start;
+      add(phases, name, nanos);
+      event.elapsed = nanos;
+      event.commit();
+    }
+  }
+
+  // The JFR event of a phase timed elsewhere is committed at once, so only its
+  // elapsed field is meaningful.
+  private static void addPhase(Map<String, Long> phases, String font, int size, String name, long nanos) {
+    add(phases, name, nanos);
+    PhaseEvent event = new PhaseEvent();
+    event.font = font;
+    event.size = size;
+    event.phase = name;
+    event.elapsed = nanos;
+    event.commit();
+  }
+
+  private static void add(Map<String, Long> phases, String name, long nanos) {
+    synchronized (phases) {
+      phases.merge(name, nanos, Long::sum);
+    }
+  }
+
+  // Writes the report as JSON. Durations are in milliseconds.
+  synchronized void write(File file) throws IOException {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"totalMs\": ").append(millis(System.nanoTime() - start)).append(",\n");
+    json.append("  \"fonts\": [");
+    for (int i = 0; i < fonts.size(); ++i) {
+      FontEntry font = fonts.get(i);
+      json.append(i == 0 ? "\n" : ",\n");
+      json.append("    {\n");
+      json.append("      \"font\": ").append(quote(font.name)).append(",\n");
+      json.append("      \"phasesMs\": ");
+      appendPhases(json, font.phases);
+      json.append(",\n");
+      json.append("      \"sizes\": [");
+      synchronized (font) {
+        for (int j = 0; j < font.sizes.size(); ++j) {
+          SizeEntry size = font.sizes.get(j);
+          json.append(j == 0 ? "\n" : ",\n");
+          synchronized (size) {
+            json.append("        {\"size\": ").append(size.size);
+            json.append(", \"phasesMs\": ");
+            appendPhases(json, size.phases);
+            json.append(", \"glyphs\": ").append(size.glyphs);
+            json.append(", \"kerningPairs\": ").append(size.kerningPairs);
+            json.append(", \"rawGlyphBytes\": ").append(size.rawGlyphBytes);
+            json.append(", \"encodedGlyphBytes\": ").append(size.encodedGlyphBytes);
+            json.append(", \"compressionRatio\": ").append(
+                size.encodedGlyphBytes == 0 ? "null"
+                    : String.format("%.3f", (double) size.rawGlyphBytes / size.encodedGlyphBytes));
+            json.append(", \"fontBytes\": ").append(size.fontBytes).append("}");
+          }
+        }
+      }
+      json.append(font.sizes.isEmpty() ? "]\n" : "\n      ]\n");
+      json.append("    }");
+    }
+    json.append(fonts.isEmpty() ? "]\n" : "\n  ]\n");
+    json.append("}\n");
+    Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void appendPhases(StringBuilder json, Map<String, Long> phases) {
+    json.append("{");
+    synchronized (phases) {
+      boolean first = true;
+      for (Map.Entry<String, Long> phase : phases.entrySet()) {
+        json.append(first ? "" : ", ").append(quote(phase.getKey())).append(": ")
+            .append(millis(phase.getValue()));
+        first = false;
+      }
+    }
+    json.append("}");
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  private static String quote(String s) {
+    StringBuilder result = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        result.append('\\').append(c);
+      } else if (c < 0x20) {
+        result.append(String.format("\\u%04x", (int) c));
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append('"').toString();
+  }
+
+  @Name("roo.display.Phase")
+  @Label("Font Import Phase")
+  @Category("Roo Display Font Importer")
+  @Description("A phase of importing a font, or one of its sizes (size 0: the font as a whole)")
+  static class PhaseEvent extends Event {
+    @Label("Font")
+    String font;
+
+    @Label("Size")
+    int size;
+
+    @Label("Phase")
+    String phase;
+
+    // The same as the duration of the event, except for phases timed
+    // elsewhere, and added with addPhase().
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+  }
+
+  @Name("roo.display.FontSize")
+  @Label("Font Size Generated")
+  @Category("Roo Display Font Importer")
+  static class FontSizeEvent extends Event {
+    @Label("Font")
+    String font;
+
+    @Label("Size")
+    int size;
+
+    @Label("Glyphs")
+    int glyphs;
+
+    @Label("Kerning Pairs")
+    int kerningPairs;
+
+    @Label("Glyph Rasters")
+    @DataAmount
+    long rawGlyphBytes;
+
+    @Label("Encoded Glyph Data")
+    @DataAmount
+    long encodedGlyphBytes;
+
+    @Label("Font Data")
+    @DataAmount
+    long fontBytes;
+  }
+}
@@ -0,0 +1,98 @@
+package roo.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import hexwriter.BinaryWriter;
+
+// Checks that the configurations picked by BudgetOptimizer fit the budget,
+// that their sizes (estimated without encoding the glyph data) are exact, and
+// that quality is only given up as needed: kerning, alpha bits, then the
+// optional blocks.
+public class BudgetOptimizerTest {
+
+  private static final List<FontEncoder.Compression> COMPRESSIONS = Arrays.asList(
+      FontEncoder.Compression.ADAPTIVE, FontEncoder.Compression.RLE, FontEncoder.Compression.PLAIN);
+
+  private static RooDisplayFont source;
+
+  @BeforeClass
+  public static void importFont() {
+    char[] charset = Arrays.copyOf(TestFonts.ASCII, TestFonts.ASCII.length + 25);
+    System.arraycopy(TestFonts.charset(0x391, 0x3A9), 0, charset, TestFonts.ASCII.length, 25);
+    source = new RooDisplayFont(TestFonts.sansSerif(15), true, charset, RooDisplayFont.AlphaBits.EIGHT,
+        null, 1, null);
+    source.generateKerningPairs(null);
+  }
+
+  @Test
+  public void keepsEverythingWithinAGenerousBudget() throws IOException {
+    BudgetOptimizer.Candidate best = optimizer(Collections.emptyList()).optimize(1 << 20);
+    assertEquals(RooDisplayFont.AlphaBits.EIGHT, best.font.getAlphaBits());
+    assertEquals(1, best.minKern);
+    assertEquals(source.getKerningPairs().size(), best.font.getKerningPairs().size());
+    assertEquals(best.bytes, write(best));
+  }
+
+  @Test
+  public void fitsTighterBudgets() throws IOException {
+    int generous = optimizer(Collections.emptyList()).optimize(1 << 20).bytes;
+    RooDisplayFont.AlphaBits previous = RooDisplayFont.AlphaBits.EIGHT;
+    for (int budget = generous - 1; ; budget -= generous / 20) {
+      BudgetOptimizer.Candidate best = optimizer(Collections.emptyList()).optimize(budget);
+      if (best == null) {
+        break;
+      }
+      assertTrue(best.bytes <= budget);
+      assertEquals(best.bytes, write(best));
+      assertTrue(best.font.getAlphaBits().bits() <= previous.bits());
+      previous = best.font.getAlphaBits();
+    }
+    assertEquals(RooDisplayFont.AlphaBits.ONE, previous);
+  }
+
+  @Test
+  public void dropsOptionalBlocksLast() throws IOException {
+    BudgetOptimizer all = optimizer(Collections.emptyList());
+    assertNull(all.optimize(100));
+    // The smallest configuration with all the glyphs: 1-bit, no kerning.
+    BudgetOptimizer.Candidate smallest = all.getSmallest();
+    assertEquals(RooDisplayFont.AlphaBits.ONE, smallest.font.getAlphaBits());
+    assertEquals(0, smallest.font.getKerningPairs().size());
+
+    BudgetOptimizer optimizer = optimizer(Collections.singletonList(Character.UnicodeBlock.GREEK));
+    BudgetOptimizer.Candidate best = optimizer.optimize(smallest.bytes);
+    assertTrue(best.droppedBlocks.isEmpty());
+    best = optimizer.optimize(smallest.bytes - 1);
+    assertNotNull(best);
+    assertEquals(Collections.singletonList(Character.UnicodeBlock.GREEK), best.droppedBlocks);
+    assertEquals(TestFonts.ASCII.length, best.font.getGlyphCount());
+    assertEquals(best.bytes, write(best));
+  }
+
+  private static BudgetOptimizer optimizer(List<Character.UnicodeBlock> optionalBlocks) {
+    BudgetOptimizer optimizer = new BudgetOptimizer(source, COMPRESSIONS, optionalBlocks, null, 1);
+    optimizer.setDeduplicateGlyphs(true);
+    return optimizer;
+  }
+
+  // Encodes the candidate for real, and returns the size of its font data.
+  private static int write(BudgetOptimizer.Candidate candidate) throws IOException {
+    FontEncoder encoder = new FontEncoder(candidate.font);
+    encoder.setTimestamped(false);
+    encoder.setDeduplicateGlyphs(true);
+    encoder.writeDefinition(new BinaryWriter(OutputStream.nullOutputStream()), "font", candidate.compression);
+    return encoder.getTotalBytes();
+  }
+}
@@ -0,0 +1,97 @@
+package roo.display;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Checks that encoding in parallel does not change the font data; and glyph
+// deduplication: a glyph identical to another one shares its data, saving
+// exactly its size.
+public class FontEncoderTest {
+
+  private static RooDisplayFont font;
+  // As above, with the glyph of 'B' replaced by a copy of the one of 'A'.
+  private static RooDisplayFont withCopy;
+
+  @BeforeClass
+  public static void importFont() {
+    font = TestFonts.kernedSansSerif(12);
+    List<RooDisplayFont.Glyph> glyphs = new ArrayList<>();
+    RooDisplayFont.Glyph a = font.getGlyphForCodepoint('A');
+    for (RooDisplayFont.Glyph glyph : font.getGlyphs()) {
+      glyphs.add(glyph.getCodePoint() != 'B' ? glyph
+          : new RooDisplayFont.Glyph(a.getBoundingBox(), 'B', a.getAdvance(), a.getRaster().clone()));
+    }
+    withCopy = new RooDisplayFont(font, font.getAlphaBits(), font.getCharset(), glyphs);
+  }
+
+  @Test
+  public void parallelEncodingMatchesSerial() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (FontEncoder.Compression compression : FontEncoder.Compression.values()) {
+        StringWriter serial = new StringWriter();
+        FontEncoder encoder = new FontEncoder(font);
+        encoder.setTimestamped(false);
+        encoder.writeDefinition(serial, "font", compression);
+        StringWriter parallel = new StringWriter();
+        encoder = new FontEncoder(font, executor, 4);
+        encoder.setTimestamped(false);
+        encoder.writeDefinition(parallel, "font", compression);
+        assertEquals(compression.toString(), serial.toString(), parallel.toString());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void sharesIdenticalGlyphs() throws IOException {
+    for (FontEncoder.Compression compression : FontEncoder.Compression.values()) {
+      FontEncoder original = encoder(font, true);
+      write(original, compression);
+      FontEncoder deduplicated = encoder(withCopy, true);
+      int deduplicatedBytes = write(deduplicated, compression);
+      FontEncoder duplicated = encoder(withCopy, false);
+      int duplicatedBytes = write(duplicated, compression);
+      assertEquals(original.getDuplicateGlyphs() + 1, deduplicated.getDuplicateGlyphs());
+      assertEquals(0, duplicated.getDuplicateGlyphs());
+      assertEquals(duplicatedBytes - deduplicated.getDuplicateGlyphBytes(), deduplicatedBytes);
+    }
+  }
+
+  @Test
+  public void unchangedWithoutDuplicates() throws IOException {
+    RooDisplayFont twoGlyphs =
+        new RooDisplayFont(TestFonts.sansSerif(12), true, new char[] { 'A', 'W' });
+    FontEncoder deduplicated = encoder(twoGlyphs, true);
+    StringWriter deduplicatedData = new StringWriter();
+    deduplicated.writeDefinition(deduplicatedData, "font", FontEncoder.Compression.RLE);
+    StringWriter plainData = new StringWriter();
+    encoder(twoGlyphs, false).writeDefinition(plainData, "font", FontEncoder.Compression.RLE);
+    assertEquals(0, deduplicated.getDuplicateGlyphs());
+    assertEquals(plainData.toString(), deduplicatedData.toString());
+  }
+
+  private static FontEncoder encoder(RooDisplayFont font, boolean deduplicate) {
+    FontEncoder encoder = new FontEncoder(font);
+    encoder.setTimestamped(false);
+    encoder.setDeduplicateGlyphs(deduplicate);
+    return encoder;
+  }
+
+  // Writes the font data, and returns its exact size.
+  private static int write(FontEncoder encoder, FontEncoder.Compression compression)
+      throws IOException {
+    encoder.writeDefinition(new StringWriter(), "font", compression);
+    return encoder.getTotalBytes();
+  }
+}
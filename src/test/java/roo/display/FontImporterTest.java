@@ -0,0 +1,72 @@
+package roo.display;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Runs the importer end to end, and checks that generating the sizes as
+// concurrent jobs writes the same files as generating them one at a time, and
+// that a size requested twice is only generated once.
+public class FontImporterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void concurrentJobsMatchSequential() throws Throwable {
+    File sequential = run("-sizes=8,12,18", "-jobs=1");
+    File concurrent = run("-sizes=8,12,18", "-jobs=3");
+    List<Path> files = list(sequential);
+    assertEquals(6, files.size());
+    assertEquals(files, list(concurrent));
+    for (Path file : files) {
+      assertArrayEquals(file.toString(), Files.readAllBytes(sequential.toPath().resolve(file)),
+          Files.readAllBytes(concurrent.toPath().resolve(file)));
+    }
+  }
+
+  @Test
+  public void repeatedSizesAreGeneratedOnce() throws Throwable {
+    File once = run("-sizes=8,12,18", "-jobs=3");
+    PrintStream stdout = System.out;
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    File repeated;
+    try {
+      System.setOut(new PrintStream(log, true));
+      repeated = run("-sizes=12,8,18,12,8", "-jobs=3");
+    } finally {
+      System.setOut(stdout);
+    }
+    assertEquals(list(once), list(repeated));
+    assertEquals(3, log.toString().split("Generating size ", -1).length - 1);
+  }
+
+  // Generates the sizes of SansSerif into a new directory, and returns it.
+  private File run(String sizes, String jobs) throws Throwable {
+    File outputDir = tmp.newFolder();
+    FontImporter.main(new String[] { "--output-dir=" + outputDir, "-font=SansSerif.plain", sizes,
+        "-charset=21-7E", "-no-cache", "-reproducible", "-threads=2", jobs });
+    return outputDir;
+  }
+
+  // The files under the directory, relative to it, sorted.
+  private static List<Path> list(File dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      return paths.filter(Files::isRegularFile).map(dir.toPath()::relativize).sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
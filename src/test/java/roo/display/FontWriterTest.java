@@ -0,0 +1,67 @@
+package roo.display;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Checks that reproducible writes leave the files that would not change
+// untouched, and replace the ones that would.
+public class FontWriterTest {
+
+  private static RooDisplayFont font;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void importFont() {
+    font = TestFonts.kernedSansSerif(12);
+  }
+
+  @Test
+  public void skipsUnchangedFiles() throws IOException {
+    FontWriter writer = new FontWriter(tmp.getRoot(), FontEncoder.Compression.RLE);
+    writer.setRdf(true);
+    writer.setReproducible(true);
+    writer.writeFont(encoder(FontEncoder.KerningFormat.FLAT), "Test", 12);
+    List<File> files = new ArrayList<>(writer.getWrittenFiles());
+    assertEquals(3, files.size());
+    assertEquals(0, writer.getUnchangedFiles().size());
+    for (File file : files) {
+      file.setLastModified(1000000000000L);
+    }
+
+    writer.writeFont(encoder(FontEncoder.KerningFormat.FLAT), "Test", 12);
+    assertEquals(0, writer.getWrittenFiles().size());
+    assertEquals(files, writer.getUnchangedFiles());
+    for (File file : files) {
+      assertEquals(file.toString(), 1000000000000L, file.lastModified());
+    }
+
+    // Only the font data changes, not the declaration in the header.
+    writer.writeFont(encoder(FontEncoder.KerningFormat.CLASSES), "Test", 12);
+    assertEquals(Arrays.asList(files.get(1), files.get(2)), writer.getWrittenFiles());
+    assertEquals(Arrays.asList(files.get(0)), writer.getUnchangedFiles());
+    // No temporary files are left behind.
+    File[] left = files.get(0).getParentFile().listFiles();
+    Arrays.sort(left);
+    assertArrayEquals(files.stream().sorted().toArray(), left);
+  }
+
+  private static FontEncoder encoder(FontEncoder.KerningFormat kerningFormat) {
+    FontEncoder encoder = new FontEncoder(font);
+    encoder.setTimestamped(false);
+    encoder.setKerningFormat(kerningFormat);
+    return encoder;
+  }
+}
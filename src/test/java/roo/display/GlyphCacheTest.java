@@ -0,0 +1,127 @@
+package roo.display;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Saves glyphs to a GlyphCache, and checks that they are mapped back as saved,
+// and that any change to the cache key (font content, font attributes, alpha
+// resolution) misses.
+public class GlyphCacheTest {
+
+  private static final long MAX_BYTES = 1 << 20;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+  private File fontFile;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = tmp.newFolder("cache");
+    fontFile = tmp.newFile("font.ttf");
+    Files.write(fontFile.toPath(), new byte[] { 1, 2, 3 });
+  }
+
+  @Test
+  public void savesAndMapsGlyphs() throws IOException {
+    RooDisplayFont.Glyph a = glyph('A', 3, 4);
+    RooDisplayFont.Glyph b = glyph('b', 5, 2);
+    GlyphCache.Sheet sheet = open(false, 12, RooDisplayFont.AlphaBits.FOUR);
+    assertNull(sheet.get('A'));
+    sheet.put(b);
+    sheet.put(a);
+    assertEquals(2, sheet.getMisses());
+    sheet.save();
+
+    sheet = open(false, 12, RooDisplayFont.AlphaBits.FOUR);
+    assertSameGlyph(a, sheet.get('A'));
+    assertSameGlyph(b, sheet.get('b'));
+    assertNull(sheet.get('C'));
+    assertEquals(2, sheet.getHits());
+    assertEquals(0, sheet.getMisses());
+  }
+
+  @Test
+  public void mergesNewGlyphsWithCachedOnes() throws IOException {
+    RooDisplayFont.Glyph a = glyph('A', 3, 4);
+    RooDisplayFont.Glyph c = glyph('C', 1, 1);
+    GlyphCache.Sheet sheet = open(false, 12, RooDisplayFont.AlphaBits.FOUR);
+    sheet.put(c);
+    sheet.save();
+
+    sheet = open(false, 12, RooDisplayFont.AlphaBits.FOUR);
+    assertNotNull(sheet.get('C'));
+    sheet.put(a);
+    sheet.save();
+
+    sheet = open(false, 12, RooDisplayFont.AlphaBits.FOUR);
+    assertSameGlyph(a, sheet.get('A'));
+    assertSameGlyph(c, sheet.get('C'));
+  }
+
+  @Test
+  public void keyChangesMiss() throws IOException {
+    GlyphCache.Sheet sheet = open(false, 12, RooDisplayFont.AlphaBits.FOUR);
+    sheet.put(glyph('A', 3, 4));
+    sheet.save();
+    assertNotNull(open(false, 12, RooDisplayFont.AlphaBits.FOUR).get('A'));
+
+    assertNull(open(false, 13, RooDisplayFont.AlphaBits.FOUR).get('A'));
+    assertNull(open(false, 12, RooDisplayFont.AlphaBits.EIGHT).get('A'));
+    assertNull(open(true, 12, RooDisplayFont.AlphaBits.FOUR).get('A'));
+    Files.write(fontFile.toPath(), new byte[] { 1, 2, 4 });
+    assertNull(open(false, 12, RooDisplayFont.AlphaBits.FOUR).get('A'));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws IOException {
+    GlyphCache cache = new GlyphCache(dir, 1, fontFile, false);
+    GlyphCache.Sheet sheet = cache.open(TestFonts.sansSerif(12), RooDisplayFont.AlphaBits.FOUR);
+    sheet.put(glyph('A', 3, 4));
+    sheet.save();
+    sheet = cache.open(TestFonts.sansSerif(13), RooDisplayFont.AlphaBits.FOUR);
+    sheet.put(glyph('A', 3, 4));
+    sheet.save();
+
+    // Only the file just written is kept.
+    assertNull(cache.open(TestFonts.sansSerif(12), RooDisplayFont.AlphaBits.FOUR).get('A'));
+    assertNotNull(cache.open(TestFonts.sansSerif(13), RooDisplayFont.AlphaBits.FOUR).get('A'));
+  }
+
+  private GlyphCache.Sheet open(boolean rebuild, int size, RooDisplayFont.AlphaBits bits) throws IOException {
+    return new GlyphCache(dir, MAX_BYTES, fontFile, rebuild).open(TestFonts.sansSerif(size), bits);
+  }
+
+  // A glyph of the specified dimensions, with distinct pixel values.
+  private static RooDisplayFont.Glyph glyph(int codepoint, int width, int height) {
+    byte[] raster = new byte[width * height];
+    for (int i = 0; i < raster.length; ++i) {
+      raster[i] = (byte) (codepoint + 37 * i);
+    }
+    return new RooDisplayFont.Glyph(
+        new RooDisplayFont.BoundingBox(-1, -height, width - 2, -1), codepoint, width + 1, raster);
+  }
+
+  private static void assertSameGlyph(RooDisplayFont.Glyph expected, RooDisplayFont.Glyph actual) {
+    assertNotNull(actual);
+    assertEquals(expected.getCodePoint(), actual.getCodePoint());
+    assertEquals(expected.getAdvance(), actual.getAdvance());
+    RooDisplayFont.BoundingBox e = expected.getBoundingBox();
+    RooDisplayFont.BoundingBox a = actual.getBoundingBox();
+    assertArrayEquals(new int[] { e.xMin, e.yMin, e.xMax, e.yMax },
+        new int[] { a.xMin, a.yMin, a.xMax, a.yMax });
+    assertArrayEquals(expected.getRaster(), actual.getRaster());
+  }
+}
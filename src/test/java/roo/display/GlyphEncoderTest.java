@@ -0,0 +1,161 @@
+package roo.display;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import roo.display.encode.Encoder;
+import roo.display.encode.alpha4.Alpha4EncoderFactory;
+import roo.display.encode.alpha8.Alpha8EncoderFactory;
+
+// Checks the glyph encodings at every alpha resolution: plain data unpacks to
+// the quantized raster, and RLE data is identical to what the library encoders
+// (that the in-tree ones replace) produce.
+public class GlyphEncoderTest {
+
+  private static final RooDisplayFont.AlphaBits[] DEPTHS = RooDisplayFont.AlphaBits.values();
+  private static final RooDisplayFont.AlphaBits[] RLE_DEPTHS = {
+      RooDisplayFont.AlphaBits.FOUR, RooDisplayFont.AlphaBits.EIGHT };
+
+  @Test
+  public void quantizesFullRange() {
+    for (RooDisplayFont.AlphaBits bits : DEPTHS) {
+      assertEquals(0, bits.quantize(0));
+      assertEquals(bits.shades() - 1, bits.quantize(0xFF));
+      for (int alpha = 1; alpha < 256; ++alpha) {
+        assertTrue(bits.quantize(alpha) >= bits.quantize(alpha - 1));
+      }
+    }
+  }
+
+  @Test
+  public void plainDataUnpacksToQuantizedRaster() {
+    Random random = new Random(1);
+    for (RooDisplayFont.AlphaBits bits : DEPTHS) {
+      FontEncoder.GlyphEncoder encoder = new FontEncoder.GlyphEncoder(bits, false);
+      FontEncoder.GlyphBuffer buffer = new FontEncoder.GlyphBuffer();
+      for (int n = 0; n < 1000; ++n) {
+        RooDisplayFont.Glyph glyph = randomGlyph(random);
+        byte[] encoded = encoder.encodeGlyph(glyph);
+        assertEquals(encoded.length, encoder.encodedLength(glyph, buffer));
+        assertArrayEquals(quantize(glyph.getRaster(), bits), unpack(encoded, bits, glyph.getRaster().length));
+      }
+    }
+  }
+
+  @Test
+  public void plainDataOfImportedGlyphs() {
+    RooDisplayFont font = new RooDisplayFont(TestFonts.sansSerif(15), true, TestFonts.ASCII);
+    for (RooDisplayFont.AlphaBits bits : DEPTHS) {
+      FontEncoder.GlyphEncoder encoder = new FontEncoder.GlyphEncoder(bits, false);
+      for (RooDisplayFont.Glyph glyph : font.getGlyphs()) {
+        byte[] raster = glyph.getRaster();
+        assertArrayEquals(quantize(raster, bits), unpack(encoder.encodeGlyph(glyph), bits, raster.length));
+      }
+    }
+  }
+
+  @Test
+  public void rleMatchesLibraryEncoders() throws IOException {
+    Random random = new Random(1);
+    for (RooDisplayFont.AlphaBits bits : RLE_DEPTHS) {
+      FontEncoder.GlyphEncoder encoder = new FontEncoder.GlyphEncoder(bits, true);
+      FontEncoder.GlyphBuffer buffer = new FontEncoder.GlyphBuffer();
+      for (int n = 0; n < 20000; ++n) {
+        RooDisplayFont.Glyph glyph = randomGlyph(random);
+        byte[] encoded = encoder.encodeGlyph(glyph);
+        assertArrayEquals(libraryRle(glyph.getRaster(), bits), encoded);
+        assertEquals(encoded.length, encoder.encodedLength(glyph, buffer));
+      }
+    }
+  }
+
+  @Test
+  public void rleOfLongRuns() throws IOException {
+    // Runs and literals long enough for multi-byte counts.
+    for (RooDisplayFont.AlphaBits bits : RLE_DEPTHS) {
+      FontEncoder.GlyphEncoder encoder = new FontEncoder.GlyphEncoder(bits, true);
+      for (int length : new int[] { 1, 2, 63, 64, 65, 300, 9000 }) {
+        byte[] run = new byte[length];
+        Arrays.fill(run, (byte) 0x80);
+        byte[] literals = new byte[length];
+        for (int i = 0; i < length; ++i) {
+          literals[i] = (byte) (i % 2 == 0 ? 0x00 : 0xFF);
+        }
+        for (byte[] raster : new byte[][] { run, literals }) {
+          RooDisplayFont.Glyph glyph = new RooDisplayFont.Glyph(
+              new RooDisplayFont.BoundingBox(0, 0, length - 1, 0), 'x', length, raster);
+          assertArrayEquals(libraryRle(raster, bits), encoder.encodeGlyph(glyph));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rleOfImportedGlyphs() throws IOException {
+    RooDisplayFont font = new RooDisplayFont(TestFonts.sansSerif(27), true, TestFonts.ASCII);
+    for (RooDisplayFont.AlphaBits bits : RLE_DEPTHS) {
+      FontEncoder.GlyphEncoder encoder = new FontEncoder.GlyphEncoder(bits, true);
+      for (RooDisplayFont.Glyph glyph : font.getGlyphs()) {
+        assertArrayEquals(libraryRle(glyph.getRaster(), bits), encoder.encodeGlyph(glyph));
+      }
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void noRleBelowFourBits() {
+    new FontEncoder.GlyphEncoder(RooDisplayFont.AlphaBits.TWO, true);
+  }
+
+  // A glyph of random dimensions (possibly empty), with random runs of
+  // random pixels.
+  static RooDisplayFont.Glyph randomGlyph(Random random) {
+    int width = random.nextInt(12);
+    int height = random.nextInt(12);
+    byte[] raster = new byte[width * height];
+    for (int i = 0; i < raster.length; ++i) {
+      raster[i] = i > 0 && random.nextInt(3) > 0 ? raster[i - 1] : (byte) random.nextInt(256);
+    }
+    return new RooDisplayFont.Glyph(new RooDisplayFont.BoundingBox(0, 0, width - 1, height - 1), 'x', width,
+        raster);
+  }
+
+  // The raster, run-length encoded by the library encoder for the depth.
+  private static byte[] libraryRle(byte[] raster, RooDisplayFont.AlphaBits bits) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    Encoder encoder = bits == RooDisplayFont.AlphaBits.FOUR ? new Alpha4EncoderFactory().create(true, os)
+        : new Alpha8EncoderFactory().create(true, os);
+    for (byte alpha : raster) {
+      encoder.encodePixel(alpha << 24);
+    }
+    encoder.close();
+    return os.toByteArray();
+  }
+
+  private static byte[] quantize(byte[] raster, RooDisplayFont.AlphaBits bits) {
+    byte[] result = new byte[raster.length];
+    for (int i = 0; i < raster.length; ++i) {
+      result[i] = (byte) bits.quantize(raster[i] & 0xFF);
+    }
+    return result;
+  }
+
+  // Reads count values of the specified width, most significant bits first.
+  private static byte[] unpack(byte[] data, RooDisplayFont.AlphaBits bits, int count) {
+    assertEquals((count * bits.bits() + 7) / 8, data.length);
+    byte[] result = new byte[count];
+    int mask = (1 << bits.bits()) - 1;
+    for (int i = 0; i < count; ++i) {
+      int bit = i * bits.bits();
+      result[i] = (byte) (((data[bit / 8] & 0xFF) >> (8 - bits.bits() - bit % 8)) & mask);
+    }
+    return result;
+  }
+}
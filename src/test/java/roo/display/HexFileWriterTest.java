@@ -0,0 +1,43 @@
+package roo.display;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Checks that HexFileWriter writes the same text as HexWriter, for font data
+// of every compression, longer than its buffer, and with non-ASCII comments.
+public class HexFileWriterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void matchesHexWriter() throws IOException {
+    RooDisplayFont font = new RooDisplayFont(TestFonts.sansSerif(27), true, TestFonts.charset(0x21, 0xFF));
+    font.generateKerningPairs(null);
+    for (FontEncoder.Compression compression : FontEncoder.Compression.values()) {
+      FontEncoder encoder = new FontEncoder(font);
+      encoder.setTimestamped(false);
+      // As FontWriter used to write the font data: in the default charset.
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(expected))) {
+        encoder.writeDefinition(out, "font", compression);
+      }
+      File file = tmp.newFile();
+      try (HexFileWriter writer = new HexFileWriter(file)) {
+        encoder.writeDefinition(writer, "font", compression);
+      }
+      assertArrayEquals(compression.toString(), expected.toByteArray(), Files.readAllBytes(file.toPath()));
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package roo.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+// Checks that the class matrix of KerningClasses expands back to exactly the
+// flat list of kerning pairs it was computed from.
+public class KerningClassesTest {
+
+  @Test
+  public void groupsIdenticalRowsAndColumns() {
+    List<RooDisplayFont.Glyph> glyphs = new ArrayList<>();
+    for (int cp = 'A'; cp <= 'E'; ++cp) {
+      glyphs.add(glyph(cp));
+    }
+    RooDisplayFont.KerningPairs pairs = new RooDisplayFont.KerningPairs();
+    // A and B kern identically on the left, D and E on the right.
+    pairs.add('A', 'D', 2);
+    pairs.add('A', 'E', 2);
+    pairs.add('B', 'D', 2);
+    pairs.add('B', 'E', 2);
+    pairs.add('A', 'C', 3);
+    pairs.add('B', 'C', 3);
+    pairs.add('C', 'A', 1);
+    pairs.sort();
+
+    KerningClasses classes = new KerningClasses(glyphs, pairs);
+    assertEquals(2, classes.getLeftClassCount());
+    assertEquals(3, classes.getRightClassCount());
+    assertEquals(classes.getLeftClass(0), classes.getLeftClass(1));
+    assertNotEquals(classes.getLeftClass(0), classes.getLeftClass(2));
+    assertEquals(classes.getRightClass(3), classes.getRightClass(4));
+    // D and E never kern on the left, B never on the right.
+    assertEquals(0, classes.getLeftClass(3));
+    assertEquals(0, classes.getLeftClass(4));
+    assertEquals(0, classes.getRightClass(1));
+    // A/B x C, A/B x D/E, C x A.
+    assertEquals(3, classes.getPairCount());
+    assertEquals(flatten(pairs), expand(glyphs, classes));
+  }
+
+  @Test
+  public void expandsToFlatPairs() {
+    RooDisplayFont font = TestFonts.kernedSansSerif(27);
+    RooDisplayFont.KerningPairs pairs = font.getKerningPairs();
+    assertFalse(pairs.isEmpty());
+    KerningClasses classes = new KerningClasses(font.getGlyphs(), pairs);
+    assertEquals(flatten(pairs), expand(font.getGlyphs(), classes));
+  }
+
+  @Test
+  public void noPairs() {
+    List<RooDisplayFont.Glyph> glyphs = new ArrayList<>();
+    glyphs.add(glyph('A'));
+    KerningClasses classes = new KerningClasses(glyphs, new RooDisplayFont.KerningPairs());
+    assertEquals(0, classes.getLeftClassCount());
+    assertEquals(0, classes.getRightClassCount());
+    assertEquals(0, classes.getPairCount());
+  }
+
+  private static RooDisplayFont.Glyph glyph(int codepoint) {
+    return new RooDisplayFont.Glyph(new RooDisplayFont.BoundingBox(0, 0, 0, 0), codepoint, 1, new byte[1]);
+  }
+
+  // The pairs, as "left right kern" strings.
+  private static Set<String> flatten(RooDisplayFont.KerningPairs pairs) {
+    Set<String> result = new TreeSet<>();
+    for (int i = 0; i < pairs.size(); ++i) {
+      result.add(pairs.getLeft(i) + " " + pairs.getRight(i) + " " + pairs.getKern(i));
+    }
+    assertEquals(pairs.size(), result.size());
+    return result;
+  }
+
+  // The pairs of glyphs that kern according to the classes, as above.
+  private static Set<String> expand(List<RooDisplayFont.Glyph> glyphs, KerningClasses classes) {
+    Set<String> result = new TreeSet<>();
+    for (int i = 0; i < glyphs.size(); ++i) {
+      int leftClass = classes.getLeftClass(i);
+      if (leftClass == 0) {
+        continue;
+      }
+      for (int j = 0; j < glyphs.size(); ++j) {
+        int rightClass = classes.getRightClass(j);
+        if (rightClass == 0) {
+          continue;
+        }
+        int kern = classes.getKern(leftClass, rightClass);
+        if (kern != 0) {
+          result.add(glyphs.get(i).getCodePoint() + " " + glyphs.get(j).getCodePoint() + " " + kern);
+        }
+      }
+    }
+    return result;
+  }
+}
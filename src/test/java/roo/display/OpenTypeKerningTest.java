@@ -0,0 +1,156 @@
+package roo.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Checks the kerning read from the tables of ASCII subsets of DejaVu Sans
+// (see DejaVu-LICENSE.txt): against the kerning probed from the rendered font,
+// from the legacy kern table as from GPOS, and within a font collection; and
+// that malformed files fail with an IOException.
+public class OpenTypeKerningTest {
+
+  private static final File SANS = TestFonts.resource("DejaVuSans-ASCII.ttf");
+  private static final File BOLD = TestFonts.resource("DejaVuSans-Bold-ASCII.ttf");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void matchesProbing() throws Exception {
+    RooDisplayFont.ScalableKerning kerning = RooDisplayFont.ScalableKerning.fromTables(
+        OpenTypeKerning.read(SANS, null), TestFonts.ASCII);
+    Font font = Font.createFont(Font.TRUETYPE_FONT, SANS);
+    for (int size : new int[] { 12, 40 }) {
+      RooDisplayFont f = new RooDisplayFont(TestFonts.kerned(font, size), true, TestFonts.ASCII);
+      f.generateKerningPairs(null);
+      RooDisplayFont.KerningPairs probed = f.getKerningPairs();
+      f.applyKerning(kerning);
+      RooDisplayFont.KerningPairs read = f.getKerningPairs();
+      assertTrue(probed.size() > 50);
+      assertEquals(probed.size(), read.size());
+      for (int i = 0; i < probed.size(); ++i) {
+        int idx = read.indexOf(probed.getLeft(i), probed.getRight(i));
+        assertTrue("Missing pair " + i + " at size " + size, idx >= 0);
+        assertEquals(probed.getKern(i), read.getKern(idx));
+      }
+    }
+  }
+
+  @Test
+  public void legacyKernTableMatchesGpos() throws IOException {
+    byte[] data = Files.readAllBytes(SANS.toPath());
+    // Renaming the GPOS table hides it.
+    int gpos = findTable(ByteBuffer.wrap(data), "GPOS");
+    data[gpos] = 'X';
+    OpenTypeKerning legacy = OpenTypeKerning.read(write(data), null);
+    assertFalse(legacy.isEmpty());
+    assertSameAdjustments(OpenTypeKerning.read(SANS, null), legacy);
+  }
+
+  @Test
+  public void selectsFontInCollection() throws IOException {
+    File collection = write(collection(SANS, BOLD));
+    assertSameAdjustments(OpenTypeKerning.read(SANS, null), OpenTypeKerning.read(collection, null));
+    assertSameAdjustments(OpenTypeKerning.read(SANS, null), OpenTypeKerning.read(collection, "DejaVuSans"));
+    assertSameAdjustments(OpenTypeKerning.read(BOLD, null),
+        OpenTypeKerning.read(collection, "DejaVuSans-Bold"));
+    assertFails(collection, "DejaVuSerif");
+  }
+
+  @Test
+  public void rejectsTruncatedFile() throws IOException {
+    byte[] data = Files.readAllBytes(SANS.toPath());
+    assertFails(write(Arrays.copyOf(data, data.length / 2)), null);
+    assertFails(write(Arrays.copyOf(data, 10)), null);
+  }
+
+  @Test
+  public void rejectsCorruptedTable() throws IOException {
+    byte[] data = Files.readAllBytes(SANS.toPath());
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    int gpos = buffer.getInt(findTable(buffer, "GPOS") + 8);
+    Arrays.fill(data, gpos + 4, gpos + 64, (byte) 0xFF);
+    assertFails(write(data), null);
+  }
+
+  private static void assertSameAdjustments(OpenTypeKerning expected, OpenTypeKerning actual) {
+    assertEquals(expected.getUnitsPerEm(), actual.getUnitsPerEm());
+    for (char left : TestFonts.ASCII) {
+      for (char right : TestFonts.ASCII) {
+        assertEquals(left + "" + right, expected.getAdjustment(left, right),
+            actual.getAdjustment(left, right));
+      }
+    }
+  }
+
+  private static void assertFails(File file, String postScriptName) {
+    try {
+      OpenTypeKerning.read(file, postScriptName);
+      fail("Read " + file);
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  // Returns the offset of the table record of the specified table.
+  private static int findTable(ByteBuffer data, String tag) {
+    int numTables = data.getShort(4) & 0xFFFF;
+    for (int i = 0; i < numTables; ++i) {
+      int record = 12 + 16 * i;
+      if (data.getInt(record) == ByteBuffer.wrap(tag.getBytes(StandardCharsets.US_ASCII)).getInt()) {
+        return record;
+      }
+    }
+    throw new IllegalArgumentException("No " + tag + " table");
+  }
+
+  // Packs the fonts into a TrueType collection: a header, then the fonts, with
+  // their table offsets moved by the offset of the font.
+  private static byte[] collection(File... fonts) throws IOException {
+    byte[][] data = new byte[fonts.length][];
+    int size = 12 + 4 * fonts.length;
+    for (int i = 0; i < fonts.length; ++i) {
+      data[i] = Files.readAllBytes(fonts[i].toPath());
+      size += data[i].length;
+    }
+    ByteBuffer result = ByteBuffer.allocate(size);
+    result.put("ttcf".getBytes(StandardCharsets.US_ASCII));
+    result.putInt(0x00010000);
+    result.putInt(fonts.length);
+    int offset = 12 + 4 * fonts.length;
+    for (byte[] font : data) {
+      result.putInt(offset);
+      offset += font.length;
+    }
+    for (byte[] font : data) {
+      ByteBuffer relocated = ByteBuffer.wrap(font);
+      int numTables = relocated.getShort(4) & 0xFFFF;
+      for (int i = 0; i < numTables; ++i) {
+        int record = 12 + 16 * i;
+        relocated.putInt(record + 8, relocated.getInt(record + 8) + result.position());
+      }
+      result.put(font);
+    }
+    return result.array();
+  }
+
+  private File write(byte[] data) throws IOException {
+    File file = tmp.newFile();
+    Files.write(file.toPath(), data);
+    return file;
+  }
+}
@@ -0,0 +1,88 @@
+package roo.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Writes fonts as C++ sources and .rdf files (with FontWriter), and checks
+// that RdfReader maps each .rdf file back to the font data of its source, in
+// every kerning table format, with and without the lookup index.
+public class RdfReaderTest {
+
+  private static RooDisplayFont font;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void importFont() {
+    font = TestFonts.kernedSansSerif(12);
+    assertFalse(font.getKerningPairs().isEmpty());
+  }
+
+  @Test
+  public void flatKerning() throws IOException {
+    roundTrip(FontEncoder.KerningFormat.FLAT, false, FontEncoder.Compression.RLE);
+  }
+
+  @Test
+  public void flatKerningWithLookupIndex() throws IOException {
+    roundTrip(FontEncoder.KerningFormat.FLAT, true, FontEncoder.Compression.RLE);
+  }
+
+  @Test
+  public void kerningClasses() throws IOException {
+    roundTrip(FontEncoder.KerningFormat.CLASSES, false, FontEncoder.Compression.RLE);
+  }
+
+  @Test
+  public void kerningClassesWithLookupIndex() throws IOException {
+    roundTrip(FontEncoder.KerningFormat.CLASSES, true, FontEncoder.Compression.RLE);
+  }
+
+  @Test
+  public void adaptiveCompression() throws IOException {
+    roundTrip(FontEncoder.KerningFormat.CLASSES, true, FontEncoder.Compression.ADAPTIVE);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsCorruptedFile() throws IOException {
+    File rdf = roundTrip(FontEncoder.KerningFormat.FLAT, false, FontEncoder.Compression.PLAIN);
+    try (RandomAccessFile file = new RandomAccessFile(rdf, "rw")) {
+      file.seek(file.length() - 1);
+      int last = file.read();
+      file.seek(file.length() - 1);
+      file.write(last ^ 0xFF);
+    }
+    new RdfReader(rdf);
+  }
+
+  // Writes the font, verifies the .rdf file against the C++ source, and
+  // returns it.
+  private File roundTrip(FontEncoder.KerningFormat format, boolean lookupIndex,
+      FontEncoder.Compression compression) throws IOException {
+    FontEncoder encoder = new FontEncoder(font);
+    encoder.setTimestamped(false);
+    encoder.setKerningFormat(format);
+    encoder.setLookupIndex(lookupIndex);
+    FontWriter writer = new FontWriter(tmp.getRoot(), compression);
+    writer.setRdf(true);
+    writer.writeFont(encoder, "Test", 12);
+
+    RdfReader reader = new RdfReader(writer.getRdfFile());
+    assertTrue(reader.verify(writer.getCppFile()) > 0);
+    assertEquals(encoder.getTotalBytes(), reader.getData().limit());
+    assertEquals(encoder.getTotalBytes(), writer.getDataBytes());
+    assertEquals(lookupIndex, encoder.getLookupIndexBytes() > 0);
+    return writer.getRdfFile();
+  }
+}
@@ -0,0 +1,96 @@
+package roo.display;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+// Checks that importing a font with its rasters stored out of memory yields
+// the same glyphs, and the same font data, as keeping them in memory; and that
+// glyphs and kerning pairs come out sorted whatever the order of the charset.
+public class RooDisplayFontTest {
+
+  private static final char[] CHARSET = TestFonts.charset(0x21, 0x17F);
+
+  @Test
+  public void storedRastersMatchInMemory() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (RooDisplayFont.AlphaBits bits : RooDisplayFont.AlphaBits.values()) {
+        RooDisplayFont inMemory =
+            new RooDisplayFont(TestFonts.sansSerif(15), true, CHARSET, bits, executor, 3, null);
+        RooDisplayFont stored =
+            new RooDisplayFont(TestFonts.sansSerif(15), true, CHARSET, bits, executor, 3, null, true);
+        assertNull(inMemory.getLengthCache());
+        List<RooDisplayFont.Glyph> glyphs = inMemory.getGlyphs();
+        assertEquals(glyphs.size(), stored.getGlyphCount());
+        for (int i = 0; i < glyphs.size(); ++i) {
+          RooDisplayFont.Glyph glyph = stored.getGlyphAtIndex(i);
+          assertFalse(glyph.hasRaster());
+          assertEquals(glyphs.get(i).getCodePoint(), glyph.getCodePoint());
+          assertArrayEquals(glyphs.get(i).getRaster(), glyph.getRaster());
+        }
+        for (FontEncoder.Compression compression : FontEncoder.Compression.values()) {
+          assertEquals(bits + " " + compression, write(inMemory, compression),
+              write(stored, compression));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void releasedRastersCannotBeRead() {
+    RooDisplayFont font = new RooDisplayFont(TestFonts.sansSerif(15), true, TestFonts.ASCII,
+        RooDisplayFont.AlphaBits.FOUR, null, 1, null, true);
+    RooDisplayFont.Glyph glyph = font.getGlyphForCodepoint('A');
+    glyph.releaseRaster();
+    try {
+      glyph.getRaster();
+      fail("Read a released raster");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void sortsGlyphsAndKerningPairs() {
+    // Out of order, with 'A' twice.
+    char[] charset = { 'o', 'V', 'A', 'T', 'A', 'a', 'W' };
+    RooDisplayFont font = new RooDisplayFont(TestFonts.sansSerif(27), true, charset);
+    font.generateKerningPairs(null);
+    List<RooDisplayFont.Glyph> glyphs = font.getGlyphs();
+    assertEquals(6, glyphs.size());
+    for (int i = 1; i < glyphs.size(); ++i) {
+      assertTrue(glyphs.get(i - 1).getCodePoint() < glyphs.get(i).getCodePoint());
+    }
+    RooDisplayFont.KerningPairs pairs = font.getKerningPairs();
+    assertTrue(pairs.size() > 0);
+    for (int i = 1; i < pairs.size(); ++i) {
+      int previous = pairs.getLeft(i - 1) << 16 | pairs.getRight(i - 1);
+      assertTrue(previous < (pairs.getLeft(i) << 16 | pairs.getRight(i)));
+    }
+  }
+
+  // The font data, deduplicated, as written to the C++ definition.
+  private static String write(RooDisplayFont font, FontEncoder.Compression compression)
+      throws IOException {
+    FontEncoder encoder = new FontEncoder(font);
+    encoder.setTimestamped(false);
+    encoder.setDeduplicateGlyphs(true);
+    StringWriter out = new StringWriter();
+    encoder.writeDefinition(out, "font", compression);
+    return out.toString();
+  }
+}
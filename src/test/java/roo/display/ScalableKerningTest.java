@@ -0,0 +1,55 @@
+package roo.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+// Checks the size-independent kerning: as read from the OpenType tables, and
+// as scaled to the size of a font.
+public class ScalableKerningTest {
+
+  @Test
+  public void fromTablesListsKernedPairsInCharsetOrder() throws IOException {
+    OpenTypeKerning tables = OpenTypeKerning.read(TestFonts.resource("DejaVuSans-ASCII.ttf"), null);
+    // 'V' comes first, and again later; U+00E9 is not in the font.
+    char[] charset = { 'V', 'A', '\u00E9', 'o', 'V', 'T' };
+    RooDisplayFont.ScalableKerning kerning = RooDisplayFont.ScalableKerning.fromTables(tables, charset);
+    char[] distinct = { 'V', 'A', 'o', 'T' };
+    int idx = 0;
+    for (char left : distinct) {
+      for (char right : distinct) {
+        int adjustment = tables.getAdjustment(left, right);
+        if (adjustment >= 0) {
+          continue;
+        }
+        assertEquals(left, kerning.getLeft(idx));
+        assertEquals(right, kerning.getRight(idx));
+        assertEquals(-adjustment / (double) tables.getUnitsPerEm(), kerning.getValue(idx), 0);
+        ++idx;
+      }
+    }
+    assertEquals(idx, kerning.size());
+    // 'A' 'V', at least, is kerned.
+    assertTrue(idx > 0);
+  }
+
+  @Test
+  public void appliesToTheSizeOfTheFont() {
+    RooDisplayFont.ScalableKerning kerning = new RooDisplayFont.ScalableKerning();
+    kerning.add('A', 'V', 0.1);
+    kerning.add('T', 'o', 0.06);
+    // Less than 1px at size 20.
+    kerning.add('A', 'T', 0.02);
+    // Not in the font.
+    kerning.add('A', 0x3A9, 0.2);
+    RooDisplayFont font = new RooDisplayFont(TestFonts.sansSerif(20), true, TestFonts.ASCII);
+    font.applyKerning(kerning);
+    RooDisplayFont.KerningPairs pairs = font.getKerningPairs();
+    assertEquals(2, pairs.size());
+    assertEquals(2, pairs.getKern(pairs.indexOf('A', 'V')));
+    assertEquals(1, pairs.getKern(pairs.indexOf('T', 'o')));
+  }
+}
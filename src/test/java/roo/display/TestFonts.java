@@ -0,0 +1,58 @@
+package roo.display;
+
+import java.awt.Font;
+import java.awt.font.TextAttribute;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Fonts shared by the tests: mostly the JDK's logical fonts, so that the tests
+// run (headless) on any box, and a few font files among the test resources.
+final class TestFonts {
+
+  // Printable ASCII.
+  static final char[] ASCII = charset(0x21, 0x7E);
+
+  private TestFonts() {}
+
+  // The logical SansSerif font at the specified size, with kerning on, as
+  // FontImporter derives it.
+  static Font sansSerif(int size) {
+    return kerned(new Font(Font.SANS_SERIF, Font.PLAIN, size), size);
+  }
+
+  // The font at the specified size, with kerning on, as FontImporter derives
+  // it.
+  static Font kerned(Font font, int size) {
+    Map<TextAttribute, Object> attributes = new HashMap<>();
+    attributes.put(TextAttribute.KERNING, TextAttribute.KERNING_ON);
+    return font.deriveFont(attributes).deriveFont(Font.PLAIN, size);
+  }
+
+  // The test resource of the specified name (e.g. a font file), next to the
+  // test classes.
+  static File resource(String name) {
+    try {
+      return new File(TestFonts.class.getResource(name).toURI());
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // SansSerif at the specified size, with its printable ASCII glyphs, and
+  // the kerning pairs probed between all of them.
+  static RooDisplayFont kernedSansSerif(int size) {
+    RooDisplayFont font = new RooDisplayFont(sansSerif(size), true, ASCII);
+    font.generateKerningPairs(null);
+    return font;
+  }
+
+  static char[] charset(int first, int last) {
+    char[] result = new char[last - first + 1];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = (char) (first + i);
+    }
+    return result;
+  }
+}